@@ -0,0 +1,548 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jruncoffeescript.CoffeeCompiler;
+import jruncoffeescript.Coffee;
+import jruncoffeescript.CompileOptions;
+import jruncoffeescript.CompileResult;
+
+/**
+ * Benchmark of the compilation.
+ *
+ * <p>Each benchmark runs warm-up iterations followed by measurement iterations,
+ * and reports the mean and the standard deviation of the iteration scores.
+ * The cold start benchmark runs a new JVM for each iteration.</p>
+ */
+public class CompileBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 2 && COLD_START_CHILD.equals(args[0])) {
+			coldStartChild(new File(args[1]));
+			return;
+		}
+
+		CompileBenchmark benchmark = new CompileBenchmark();
+		benchmark.parseOptions(args);
+		benchmark.run();
+	}
+
+	private static final String COLD_START_CHILD = "--cold-start-child";
+
+	private static final int LARGE_FILE_LINES = 10000;
+
+	private File corpusDir = new File("bench/corpus");
+	private int warmupIterations = 5;
+	private int measurementIterations = 5;
+	private long iterationMillis = 1000;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int forks = 3;
+	private final List<String> selected = new ArrayList<String>();
+
+	private final Map<String, Benchmark> benchmarks = new LinkedHashMap<String, Benchmark>();
+
+	private long sink = 0;	// consumes the results, so that the compilation is not optimized out
+
+	public CompileBenchmark() {
+		benchmarks.put("coldStart", new ColdStart());
+		benchmarks.put("engineInit", new EngineInit());
+		benchmarks.put("warmSingle", new InMemory("model.coffee", false));
+		benchmarks.put("sourceMap", new InMemory("model.coffee", true));
+		benchmarks.put("literate", new InMemory("guide.litcoffee", false));
+		benchmarks.put("largeFile", new LargeFile());
+		benchmarks.put("fileCompile", new FileCompile());
+		benchmarks.put("throughput", new Throughput());
+	}
+
+	public void parseOptions(String[] args) {
+		for (int i = 0; i < args.length; ++i) {
+			String opt = args[i];
+			String value = (i + 1 < args.length) ? args[i + 1] : "";
+			if ("--corpus".equals(opt)) {
+				corpusDir = new File(value);
+				++i;
+			} else if ("--warmup".equals(opt)) {
+				warmupIterations = Integer.parseInt(value);
+				++i;
+			} else if ("--iterations".equals(opt)) {
+				measurementIterations = Integer.parseInt(value);
+				++i;
+			} else if ("--time".equals(opt)) {
+				iterationMillis = Long.parseLong(value);
+				++i;
+			} else if ("--threads".equals(opt)) {
+				threads = Integer.parseInt(value);
+				++i;
+			} else if ("--forks".equals(opt)) {
+				forks = Integer.parseInt(value);
+				++i;
+			} else if ("--help".equals(opt)) {
+				showHelp();
+				System.exit(0);
+			} else if (benchmarks.containsKey(opt)) {
+				selected.add(opt);
+			} else {
+				System.err.println(MessageFormat.format("Unknown option or benchmark: {0}", opt));
+				showHelp();
+				System.exit(1);
+			}
+		}
+		if (selected.isEmpty()) {
+			selected.addAll(benchmarks.keySet());
+		}
+	}
+
+	private void showHelp() {
+		System.out.println("Usage: java " + getClass().getName() + " [options] [benchmark ...]");
+		System.out.println("  --corpus DIR        directory of the fixtures (default: bench/corpus)");
+		System.out.println("  --warmup N          number of warm-up iterations (default: 5)");
+		System.out.println("  --iterations N      number of measurement iterations (default: 5)");
+		System.out.println("  --time MS           duration of an iteration (default: 1000)");
+		System.out.println("  --threads N         number of threads of the throughput benchmark (default: number of processors)");
+		System.out.println("  --forks N           number of JVMs of the cold start benchmark (default: 3)");
+		System.out.println("Benchmarks: " + benchmarks.keySet());
+	}
+
+	public void run() throws Exception {
+		System.out.println(MessageFormat.format("# JVM: {0} {1}", System.getProperty("java.vm.name"), System.getProperty("java.version")));
+		System.out.println(MessageFormat.format("# Corpus: {0}", corpusDir.getAbsolutePath()));
+
+		List<String[]> rows = new ArrayList<String[]>();
+		for (String name : selected) {
+			Benchmark benchmark = benchmarks.get(name);
+			System.out.println(MessageFormat.format("# Benchmark: {0}", name));
+			benchmark.setUp();
+			try {
+				int warmup = benchmark.getWarmupIterations();
+				int iterations = benchmark.getMeasurementIterations();
+				for (int i = 0; i < warmup; ++i) {
+					double score = benchmark.iteration();
+					System.out.println(MessageFormat.format("  warm-up {0}: {1} {2}", i + 1, format(score), benchmark.getUnit()));
+				}
+				double[] scores = new double[iterations];
+				for (int i = 0; i < iterations; ++i) {
+					scores[i] = benchmark.iteration();
+					System.out.println(MessageFormat.format("  iteration {0}: {1} {2}", i + 1, format(scores[i]), benchmark.getUnit()));
+				}
+				rows.add(new String[] {
+						name,
+						benchmark.isSingleShot() ? "ss" : (benchmark.getUnit().endsWith("/s") ? "thrpt" : "avgt"),
+						String.valueOf(iterations),
+						format(mean(scores)),
+						format(stdev(scores)),
+						benchmark.getUnit()
+				});
+			} finally {
+				benchmark.tearDown();
+			}
+		}
+
+		System.out.println();
+		System.out.println(String.format("%-12s %-6s %4s %12s %10s  %s", "Benchmark", "Mode", "Cnt", "Score", "StdDev", "Units"));
+		for (String[] row : rows) {
+			System.out.println(String.format("%-12s %-6s %4s %12s %10s  %s", (Object[]) row));
+		}
+		if (sink == 42) {
+			System.out.println();	// never happens in practice
+		}
+	}
+
+	private String readCorpusFile(String name) throws IOException {
+		return new String(Files.readAllBytes(new File(corpusDir, name).toPath()), "UTF-8");
+	}
+
+	private List<File> listCorpusFiles() {
+		File[] files = corpusDir.listFiles();
+		if (files == null) {
+			throw new IllegalStateException("corpus not found: " + corpusDir.getAbsolutePath());
+		}
+		Arrays.sort(files);
+		List<File> list = new ArrayList<File>();
+		for (File f : files) {
+			if (f.getName().endsWith(".coffee") || f.getName().endsWith(".litcoffee")) {
+				list.add(f);
+			}
+		}
+		return list;
+	}
+
+	private CompileOptions newOptions(String fileName, boolean sourceMap) {
+		CompileOptions options = new CompileOptions();
+		options.setFilename(fileName);
+		options.setLiterate(fileName.endsWith(".litcoffee"));
+		options.setSourceMap(sourceMap);
+		if (sourceMap) {
+			options.setGeneratedFile(fileName.replaceAll("\\.(lit)?coffee$", ".js"));
+			options.setSourceFiles(Arrays.asList(fileName));
+		}
+		return options;
+	}
+
+	private void consume(CompileResult result) {
+		if (!result.isSuccess()) {
+			throw new IllegalStateException(result.getErrors().get(0).toString());
+		}
+		sink += result.getJs().length();
+	}
+
+	private static double mean(double[] values) {
+		double sum = 0;
+		for (double v : values) {
+			sum += v;
+		}
+		return sum / values.length;
+	}
+
+	private static double stdev(double[] values) {
+		if (values.length < 2) {
+			return 0;
+		}
+		double mean = mean(values);
+		double sum = 0;
+		for (double v : values) {
+			sum += (v - mean) * (v - mean);
+		}
+		return Math.sqrt(sum / (values.length - 1));
+	}
+
+	private static String format(double value) {
+		return String.format("%.3f", value);
+	}
+
+	private static void coldStartChild(File sourceFile) throws Exception {
+		String source = new String(Files.readAllBytes(sourceFile.toPath()), "UTF-8");
+		CompileOptions options = new CompileOptions();
+		options.setFilename(sourceFile.getName());
+		CompileResult result = new CoffeeCompiler(1).compile(source, options);
+		System.exit(result.isSuccess() ? 0 : 1);
+	}
+
+	private abstract class Benchmark {
+
+		public void setUp() throws Exception {
+		}
+
+		public void tearDown() throws Exception {
+		}
+
+		/**
+		 * Whether an iteration consists of a single operation.
+		 */
+		public boolean isSingleShot() {
+			return false;
+		}
+
+		public String getUnit() {
+			return "ms/op";
+		}
+
+		public int getWarmupIterations() {
+			return isSingleShot() ? 0 : warmupIterations;
+		}
+
+		public int getMeasurementIterations() {
+			return measurementIterations;
+		}
+
+		/**
+		 * Runs one iteration and returns the score.
+		 */
+		public abstract double iteration() throws Exception;
+	}
+
+	/**
+	 * Benchmark whose iteration repeats an operation until the iteration time elapses, and scores the mean time.
+	 */
+	private abstract class OperationBenchmark extends Benchmark {
+
+		public abstract void operation() throws Exception;
+
+		@Override
+		public double iteration() throws Exception {
+			long start = System.nanoTime();
+			long deadline = start + iterationMillis * 1000000L;
+			long ops = 0;
+			long now;
+			do {
+				operation();
+				++ops;
+				now = System.nanoTime();
+			} while (!isSingleShot() && now < deadline);
+			return (now - start) / 1e6 / ops;
+		}
+	}
+
+	/**
+	 * Time to the first compiled file in a new JVM.
+	 */
+	private class ColdStart extends OperationBenchmark {
+
+		@Override
+		public boolean isSingleShot() {
+			return true;
+		}
+
+		@Override
+		public int getMeasurementIterations() {
+			return forks;
+		}
+
+		@Override
+		public void operation() throws Exception {
+			String javaCommand = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+			ProcessBuilder builder = new ProcessBuilder(
+					javaCommand,
+					"-cp", System.getProperty("java.class.path"),
+					CompileBenchmark.class.getName(),
+					COLD_START_CHILD,
+					new File(corpusDir, "model.coffee").getPath());
+			builder.redirectErrorStream(true);
+			Process process = builder.start();
+			InputStream in = process.getInputStream();
+			byte[] buffer = new byte[4096];
+			while (in.read(buffer) >= 0) {
+				// discard
+			}
+			int status = process.waitFor();
+			if (status != 0) {
+				throw new IllegalStateException("cold start failed: exit status " + status);
+			}
+		}
+	}
+
+	/**
+	 * Initialization of a script engine in a running JVM.
+	 */
+	private class EngineInit extends OperationBenchmark {
+
+		@Override
+		public boolean isSingleShot() {
+			return true;
+		}
+
+		@Override
+		public void operation() throws Exception {
+			CoffeeCompiler compiler = new CoffeeCompiler(1);
+			compiler.init();
+		}
+	}
+
+	/**
+	 * Compilation of a fixture in a warmed script context.
+	 */
+	private class InMemory extends OperationBenchmark {
+
+		private final String fileName;
+		private final boolean sourceMap;
+
+		protected CoffeeCompiler compiler;
+		protected String source;
+		protected CompileOptions options;
+
+		public InMemory(String fileName, boolean sourceMap) {
+			this.fileName = fileName;
+			this.sourceMap = sourceMap;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			compiler = new CoffeeCompiler(1);
+			compiler.init();
+			source = readCorpusFile(fileName);
+			options = newOptions(fileName, sourceMap);
+		}
+
+		@Override
+		public void tearDown() {
+			compiler = null;
+		}
+
+		@Override
+		public void operation() throws Exception {
+			consume(compiler.compile(source, options));
+		}
+	}
+
+	/**
+	 * Compilation of a large file which is made by concatenating the fixtures.
+	 */
+	private class LargeFile extends InMemory {
+
+		public LargeFile() {
+			super("large.coffee", false);
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			compiler = new CoffeeCompiler(1);
+			compiler.init();
+			options = newOptions("large.coffee", false);
+
+			StringBuilder s = new StringBuilder();
+			int lines = 0;
+			while (lines < LARGE_FILE_LINES) {
+				int previous = lines;
+				for (File f : listCorpusFiles()) {
+					if (!f.getName().endsWith(".coffee")) {
+						continue;
+					}
+					String part = readCorpusFile(f.getName());
+					s.append(part).append('\n');
+					lines += part.split("\n", -1).length;
+				}
+				if (lines == previous) {
+					throw new IllegalStateException("no .coffee file in the corpus: " + corpusDir.getAbsolutePath());
+				}
+			}
+			source = s.toString();
+			System.out.println(MessageFormat.format("  {0} lines", lines));
+		}
+	}
+
+	/**
+	 * Compilation through the command line interface, including the file I/O.
+	 */
+	private class FileCompile extends OperationBenchmark {
+
+		private File outputDir;
+		private Coffee coffee;
+		private List<File> files;
+
+		@Override
+		public void setUp() throws Exception {
+			outputDir = Files.createTempDirectory("jruncoffeescript-bench").toFile();
+			coffee = new Coffee();
+			coffee.parseOptions(new String[] { "-c", "-m", "--output", outputDir.getPath() });
+			files = listCorpusFiles();
+		}
+
+		@Override
+		public void tearDown() {
+			File[] outputs = outputDir.listFiles();
+			if (outputs != null) {
+				for (File f : outputs) {
+					f.delete();
+				}
+			}
+			outputDir.delete();
+		}
+
+		@Override
+		public void operation() throws Exception {
+			for (File f : files) {
+				if (!coffee.compile(f.getPath())) {
+					throw new IllegalStateException("compilation failed: " + f);
+				}
+			}
+		}
+
+		@Override
+		public String getUnit() {
+			return "ms/corpus";
+		}
+	}
+
+	/**
+	 * Compilations per second with multiple threads sharing one compiler.
+	 */
+	private class Throughput extends Benchmark {
+
+		private CoffeeCompiler compiler;
+		private final List<String> sources = new ArrayList<String>();
+		private final List<CompileOptions> optionsList = new ArrayList<CompileOptions>();
+
+		@Override
+		public void setUp() throws Exception {
+			compiler = new CoffeeCompiler(threads);
+			compiler.init();
+			for (File f : listCorpusFiles()) {
+				sources.add(readCorpusFile(f.getName()));
+				optionsList.add(newOptions(f.getName(), false));
+			}
+			System.out.println(MessageFormat.format("  {0} threads", threads));
+		}
+
+		@Override
+		public void tearDown() {
+			compiler = null;
+		}
+
+		@Override
+		public String getUnit() {
+			return "ops/s";
+		}
+
+		@Override
+		public double iteration() throws Exception {
+			final AtomicLong ops = new AtomicLong();
+			final long deadline = System.nanoTime() + iterationMillis * 1000000L;
+			final CountDownLatch done = new CountDownLatch(threads);
+			final Exception[] failure = new Exception[1];
+			long start = System.nanoTime();
+			for (int t = 0; t < threads; ++t) {
+				final int offset = t;
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							int i = offset;
+							while (System.nanoTime() < deadline) {
+								int index = i++ % sources.size();
+								CompileResult result = compiler.compile(sources.get(index), optionsList.get(index));
+								if (!result.isSuccess()) {
+									throw new IllegalStateException(result.getErrors().get(0).toString());
+								}
+								ops.incrementAndGet();
+							}
+						} catch (Exception e) {
+							synchronized (failure) {
+								failure[0] = e;
+							}
+						} finally {
+							done.countDown();
+						}
+					}
+				}).start();
+			}
+			done.await();
+			synchronized (failure) {
+				if (failure[0] != null) {
+					throw failure[0];
+				}
+			}
+			return ops.get() / ((System.nanoTime() - start) / 1e9);
+		}
+	}
+}
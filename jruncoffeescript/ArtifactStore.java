@@ -0,0 +1,52 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Storage of the entries of the {@link BuildCache}.
+ *
+ * <p>An artifact is addressed by a name such as "ab/abcdef....js",
+ * which is derived from the hash of its inputs, so the content of a name never changes.</p>
+ */
+interface ArtifactStore {
+
+	/**
+	 * Copies the artifact to the file.
+	 * A file which has the same content as the artifact is left untouched.
+	 *
+	 * @param name name of the artifact
+	 * @param file file to restore the artifact
+	 * @return true if the artifact was found
+	 */
+	boolean fetch(String name, File file) throws IOException;
+
+	/**
+	 * Stores the file as the artifact.
+	 *
+	 * @param name name of the artifact
+	 * @param file file to store
+	 */
+	void put(String name, File file) throws IOException;
+}
@@ -0,0 +1,55 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.io.IOException;
+
+/**
+ * Base64 VLQ encoding used in the "mappings" of the source map V3.
+ */
+final class Base64Vlq {
+
+	private static final String BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	private static final int VLQ_BASE_SHIFT = 5;
+	private static final int VLQ_BASE = 1 << VLQ_BASE_SHIFT;
+	private static final int VLQ_BASE_MASK = VLQ_BASE - 1;
+	private static final int VLQ_CONTINUATION_BIT = VLQ_BASE;
+
+	private Base64Vlq() {
+	}
+
+	/**
+	 * Appends the encoded value.
+	 */
+	public static void encode(Appendable out, int value) throws IOException {
+		// the sign is stored in the least significant bit
+		int vlq = (value < 0) ? ((-value) << 1) | 1 : value << 1;
+		do {
+			int digit = vlq & VLQ_BASE_MASK;
+			vlq >>>= VLQ_BASE_SHIFT;
+			if (vlq != 0) {
+				digit |= VLQ_CONTINUATION_BIT;
+			}
+			out.append(BASE64_CHARS.charAt(digit));
+		} while (vlq != 0);
+	}
+}
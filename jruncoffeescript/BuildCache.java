@@ -0,0 +1,147 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Cache of the compiled files.
+ *
+ * <p>Each entry is keyed by the hash of the source code and the options which affect the output,
+ * so the entry can be reused regardless of the timestamps of the files, and on other machines.</p>
+ *
+ * <p>The entries are kept in one or more {@link ArtifactStore}s, from the nearest to the farthest.
+ * An entry found in a farther store is copied to the nearer ones, and a new entry is stored in all of them.</p>
+ *
+ * <pre>
+ * ab/abcdef....js
+ * ab/abcdef....js.map
+ * </pre>
+ */
+class BuildCache {
+
+	private static final String EXTENSION_JS = ".js";
+	private static final String EXTENSION_MAP = ".js.map";
+
+	private final List<ArtifactStore> stores;
+
+	/**
+	 * @param stores stores of the entries, from the nearest to the farthest
+	 */
+	public BuildCache(List<ArtifactStore> stores) {
+		this.stores = new ArrayList<ArtifactStore>(stores);
+	}
+
+	/**
+	 * Computes the key of the cache entry.
+	 *
+	 * @param source source code
+	 * @param options options which affect the output
+	 */
+	public static String computeKey(String source, Map<String, ?> options) throws UnsupportedEncodingException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for (Map.Entry<String, ?> entry : new TreeMap<String, Object>(options).entrySet()) {
+			digest.update(entry.getKey().getBytes("UTF-8"));
+			digest.update((byte) '=');
+			digest.update(String.valueOf(entry.getValue()).getBytes("UTF-8"));
+			digest.update((byte) 0);
+		}
+		digest.update(source.getBytes("UTF-8"));
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Restores the cached files.
+	 * A target file which has the same content as the cached one is left untouched.
+	 *
+	 * @param key key of the cache entry
+	 * @param jsFile file to restore the JavaScript code
+	 * @param mapFile file to restore the source map, or null
+	 * @return true if the entry was found
+	 */
+	public boolean restore(String key, File jsFile, File mapFile) throws IOException {
+		String jsName = getEntryName(key, EXTENSION_JS);
+		String mapName = getEntryName(key, EXTENSION_MAP);
+		for (int i = 0; i < stores.size(); ++i) {
+			ArtifactStore store = stores.get(i);
+			// the map file is fetched first, because the entry is regarded as available when the js file exists.
+			if ((mapFile == null || store.fetch(mapName, mapFile)) && store.fetch(jsName, jsFile)) {
+				for (ArtifactStore nearer : stores.subList(0, i)) {
+					put(nearer, key, jsFile, mapFile);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stores the compiled files.
+	 *
+	 * @param key key of the cache entry
+	 * @param jsFile file of the JavaScript code
+	 * @param mapFile file of the source map, or null
+	 */
+	public void store(String key, File jsFile, File mapFile) throws IOException {
+		for (ArtifactStore store : stores) {
+			put(store, key, jsFile, mapFile);
+		}
+	}
+
+	private void put(ArtifactStore store, String key, File jsFile, File mapFile) throws IOException {
+		// the map file is stored first, because the entry is regarded as available when the js file exists.
+		if (mapFile != null) {
+			store.put(getEntryName(key, EXTENSION_MAP), mapFile);
+		}
+		store.put(getEntryName(key, EXTENSION_JS), jsFile);
+	}
+
+	private String getEntryName(String key, String extension) {
+		return key.substring(0, 2) + "/" + key + extension;
+	}
+
+	@Override
+	public String toString() {
+		return stores.toString();
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder s = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			s.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,306 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persisted mapping from the source files to their outputs.
+ *
+ * <p>Each source file is recorded with its timestamp and size when it was compiled, and the output files.
+ * A source file is up-to-date if its timestamp and size are the same as the record,
+ * so the output files are not examined. All records are stale if the graph was built
+ * by another version of the compiler or with other options.</p>
+ *
+ * <pre>
+ * {
+ * "format": 1,
+ * "compiler": "1.9.2",
+ * "options": "...",
+ * "sources": {
+ * "/path/to/a.coffee": {"modified": 1436918400000, "size": 1234, "outputs": ["/path/to/a.js", "/path/to/a.js.map"]}
+ * }
+ * }
+ * </pre>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class BuildGraph {
+
+	private static final long FORMAT = 1;
+
+	private final File file;
+	private final String compiler;
+	private final String options;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final Set<String> visited = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Map<String, Set<String>> owners = new HashMap<String, Set<String>>();	// output -> sources, guarded by this
+
+	private BuildGraph(File file, String compiler, String options) {
+		this.file = file;
+		this.compiler = compiler;
+		this.options = options;
+	}
+
+	/**
+	 * Loads the graph from the file. An empty graph is returned if the file doesn't exist.
+	 *
+	 * @param file file of the graph
+	 * @param compiler version of the compiler
+	 * @param options options which affect the outputs
+	 */
+	public static BuildGraph load(File file, String compiler, String options) throws IOException {
+		if (!file.isFile()) {
+			return new BuildGraph(file, compiler, options);
+		}
+
+		Object parsed;
+		try {
+			parsed = Json.parse(FileUtil.readText(file));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("invalid build graph: " + file, e);
+		}
+		Map<?, ?> root = (parsed instanceof Map) ? (Map<?, ?>) parsed : Collections.emptyMap();
+		if (!Long.valueOf(FORMAT).equals(root.get("format")) || !(root.get("sources") instanceof Map)) {
+			return new BuildGraph(file, compiler, options);
+		}
+
+		// records built by another compiler or with other options are kept only for their outputs,
+		// so that they are rebuilt even if the graph is saved before all of them are
+		boolean stale = !compiler.equals(root.get("compiler")) || !options.equals(root.get("options"));
+		BuildGraph graph = new BuildGraph(file, compiler, options);
+		for (Map.Entry<?, ?> e : ((Map<?, ?>) root.get("sources")).entrySet()) {
+			if (!(e.getValue() instanceof Map)) {
+				continue;
+			}
+			Map<?, ?> record = (Map<?, ?>) e.getValue();
+			List<String> outputs = new ArrayList<String>();
+			if (record.get("outputs") instanceof List) {
+				for (Object output : (List<?>) record.get("outputs")) {
+					outputs.add(String.valueOf(output));
+				}
+			}
+			long modified = stale ? -1 : toLong(record.get("modified"));
+			long size = stale ? -1 : toLong(record.get("size"));
+			String path = String.valueOf(e.getKey());
+			graph.entries.put(path, new Entry(modified, size, outputs));
+			graph.addOwner(path, outputs);
+		}
+		return graph;
+	}
+
+	private static long toLong(Object value) {
+		return (value instanceof Number) ? ((Number) value).longValue() : -1;
+	}
+
+	/**
+	 * Returns whether the outputs of the source file are up-to-date.
+	 * The source file is marked as visited.
+	 */
+	public boolean isUpToDate(File sourceFile, long modified, long size) {
+		String path = sourceFile.getPath();
+		visited.add(path);
+		Entry entry = entries.get(path);
+		return entry != null && entry.modified == modified && entry.size == size;
+	}
+
+	/**
+	 * Records the outputs of the compiled source file.
+	 *
+	 * @return output files of the previous record which are not produced anymore
+	 */
+	public synchronized List<File> update(File sourceFile, long modified, long size, List<File> outputFiles) {
+		List<String> outputs = new ArrayList<String>();
+		for (File outputFile : outputFiles) {
+			outputs.add(outputFile.getPath());
+		}
+		String path = sourceFile.getPath();
+		Entry previous = entries.put(path, new Entry(modified, size, outputs));
+		if (previous != null) {
+			removeOwner(path, previous.outputs);
+		}
+		addOwner(path, outputs);
+		return getRemovedOutputs(path, previous, outputs);
+	}
+
+	/**
+	 * Marks the source file to be compiled next time, keeping its outputs.
+	 */
+	public void invalidate(File sourceFile) {
+		Entry entry = entries.get(sourceFile.getPath());
+		if (entry != null) {
+			entries.put(sourceFile.getPath(), new Entry(-1, -1, entry.outputs));
+		}
+	}
+
+	/**
+	 * Returns the output files of the source file which would be deleted by {@link #remove(File)}.
+	 */
+	public synchronized List<File> getOutputs(File sourceFile) {
+		String path = sourceFile.getPath();
+		return getRemovedOutputs(path, entries.get(path), Collections.<String>emptyList());
+	}
+
+	/**
+	 * Removes the record of the deleted source file.
+	 *
+	 * @return output files of the record, except the ones recorded for other source files
+	 */
+	public synchronized List<File> remove(File sourceFile) {
+		String path = sourceFile.getPath();
+		Entry entry = entries.remove(path);
+		if (entry != null) {
+			removeOwner(path, entry.outputs);
+		}
+		return getRemovedOutputs(path, entry, Collections.<String>emptyList());
+	}
+
+	/**
+	 * Returns the outputs of the entry which are neither in the new outputs nor recorded for other source files.
+	 * An output can be recorded for another source file when a source file was moved,
+	 * or when two source files are compiled into the same output directory.
+	 */
+	private List<File> getRemovedOutputs(String path, Entry entry, List<String> outputs) {
+		List<File> removed = new ArrayList<File>();
+		if (entry != null) {
+			for (String output : entry.outputs) {
+				if (!outputs.contains(output) && !isOwnedByOthers(output, path)) {
+					removed.add(new File(output));
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Returns whether the output file is recorded for any source file.
+	 */
+	public synchronized boolean isRecorded(File outputFile) {
+		return isOwnedByOthers(outputFile.getPath(), null);
+	}
+
+	private boolean isOwnedByOthers(String output, String path) {
+		Set<String> sources = owners.get(output);
+		return sources != null && (sources.size() > 1 || !sources.contains(path));
+	}
+
+	private void addOwner(String path, List<String> outputs) {
+		for (String output : outputs) {
+			Set<String> sources = owners.get(output);
+			if (sources == null) {
+				sources = new HashSet<String>(2);
+				owners.put(output, sources);
+			}
+			sources.add(path);
+		}
+	}
+
+	private void removeOwner(String path, List<String> outputs) {
+		for (String output : outputs) {
+			Set<String> sources = owners.get(output);
+			if (sources != null && sources.remove(path) && sources.isEmpty()) {
+				owners.remove(output);
+			}
+		}
+	}
+
+	/**
+	 * Returns the records whose source files were not visited and don't exist anymore.
+	 * Only the unvisited source files are examined.
+	 *
+	 * @return paths of the source files
+	 */
+	public List<File> findOrphans() {
+		List<File> orphans = new ArrayList<File>();
+		for (String path : new TreeMap<String, Entry>(entries).keySet()) {
+			if (!visited.contains(path) && !new File(path).exists()) {
+				orphans.add(new File(path));
+			}
+		}
+		return orphans;
+	}
+
+	/**
+	 * Clears the visited marks for the next build.
+	 */
+	public void resetVisits() {
+		visited.clear();
+	}
+
+	/**
+	 * Writes the graph to the file atomically.
+	 */
+	public void save() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n\"format\": ").append(FORMAT);
+		sb.append(",\n\"compiler\": ");
+		Json.quote(sb, compiler);
+		sb.append(",\n\"options\": ");
+		Json.quote(sb, options);
+		sb.append(",\n\"sources\": {");
+		boolean first = true;
+		for (Map.Entry<String, Entry> e : new TreeMap<String, Entry>(entries).entrySet()) {
+			Entry entry = e.getValue();
+			sb.append(first ? "\n" : ",\n");
+			first = false;
+			Json.quote(sb, e.getKey());
+			sb.append(": {\"modified\": ").append(entry.modified);
+			sb.append(", \"size\": ").append(entry.size);
+			sb.append(", \"outputs\": [");
+			for (int i = 0; i < entry.outputs.size(); ++i) {
+				if (i > 0) {
+					sb.append(", ");
+				}
+				Json.quote(sb, entry.outputs.get(i));
+			}
+			sb.append("]}");
+		}
+		sb.append("\n}\n}\n");
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null) {
+			dir.mkdirs();
+		}
+		FileUtil.writeText(file, sb);
+	}
+
+	private static class Entry {
+
+		final long modified;
+		final long size;
+		final List<String> outputs;
+
+		Entry(long modified, long size, List<String> outputs) {
+			this.modified = modified;
+			this.size = size;
+			this.outputs = outputs;
+		}
+	}
+}
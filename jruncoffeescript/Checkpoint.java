@@ -0,0 +1,73 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Checkpoint of the process with CRaC (Coordinated Restore at Checkpoint).
+ *
+ * <p>CRaC is accessed through reflection, either by the org.crac library in the class path,
+ * which works on any JVM, or by the jdk.crac API of a JDK with CRaC.
+ * The JVM saves the image of the process to the directory of <code>-XX:CRaCCheckpointTo=DIR</code>,
+ * and <code>java -XX:CRaCRestoreFrom=DIR</code> resumes the process from the checkpoint,
+ * with the script engines warmed up.</p>
+ */
+class Checkpoint {
+
+	private static final String[] CORE_CLASSES = { "org.crac.Core", "jdk.crac.Core" };
+
+	private Checkpoint() {
+	}
+
+	/**
+	 * Saves the image of the process and exits the JVM.
+	 * When the image is restored, this method returns in the restored process.
+	 *
+	 * @throws IllegalStateException if CRaC is not available, or the checkpoint failed
+	 */
+	public static void checkpointRestore() {
+		Method checkpointRestore = null;
+		for (String className : CORE_CLASSES) {
+			try {
+				checkpointRestore = Class.forName(className).getMethod("checkpointRestore");
+				break;
+			} catch (ClassNotFoundException e) {
+				// try next
+			} catch (NoSuchMethodException e) {
+				// try next
+			}
+		}
+		if (checkpointRestore == null) {
+			throw new IllegalStateException("CRaC is not available; run on a JDK with CRaC, or put org.crac in CLASSPATH");
+		}
+
+		try {
+			checkpointRestore.invoke(null);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException("Checkpoint failed: " + e.getCause(), e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
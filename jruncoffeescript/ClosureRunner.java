@@ -0,0 +1,296 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs Google's Closure Compiler.
+ *
+ * <p>If the options consist only of the options which can be mapped to the Java API
+ * ({@value #OPT_COMPILATION_LEVEL} and {@value #OPT_WARNING_LEVEL}),
+ * the code is optimized in memory with the externs and options prepared once.
+ * Otherwise <code>CommandLineRunner</code> is used for each file.</p>
+ *
+ * <p>The classes of Closure Compiler are accessed through reflection,
+ * so compiler.jar is needed only in the class path at runtime.</p>
+ */
+class ClosureRunner {
+
+	private static final String OPT_SOURCE_JS = "--js";
+	private static final String OPT_OUTPUT_JS = "--js_output_file";
+	private static final String OPT_COMPILATION_LEVEL = "--compilation_level";
+	private static final String OPT_WARNING_LEVEL = "--warning_level";
+
+	private static final String PACKAGE = "com.google.javascript.jscomp.";
+
+	private final String[] args;
+
+	private final Class<?> commandLineRunnerClass;
+	private final Constructor<?> commandLineRunnerCtor;
+	private final Method commandLineRunnerRun;
+
+	// for the in-memory optimization (null if not available)
+	private InMemoryCompiler inMemoryCompiler = null;
+
+	public ClosureRunner(String options) throws ClassNotFoundException, NoSuchMethodException {
+
+		commandLineRunnerClass = Class.forName(PACKAGE + "CommandLineRunner");
+		commandLineRunnerCtor = commandLineRunnerClass.getDeclaredConstructor(String[].class);
+		commandLineRunnerCtor.setAccessible(true);
+		commandLineRunnerRun = commandLineRunnerClass.getSuperclass().getDeclaredMethod("doRun");
+		commandLineRunnerRun.setAccessible(true);
+
+		if (options == null) {
+			args = new String[0];
+			inMemoryCompiler = InMemoryCompiler.create(args);
+			return;
+		}
+
+		String opt = options.trim();
+		if (opt.length() == 0) {
+			args = new String[0];
+			inMemoryCompiler = InMemoryCompiler.create(args);
+			return;
+		}
+
+		// an argument is a quoted string or a word, and the arguments are separated by spaces
+		Pattern pattern = Pattern.compile("\\G(?:^|\\s+)(?:\"([^\"]*)\"|([^\\s\"]\\S*))");
+		Matcher matcher = pattern.matcher(opt);
+		List<String> argsList = new ArrayList<String>();
+		boolean skipNext = false;
+		int end = 0;
+		while (matcher.find()) {
+			end = matcher.end();
+			if (skipNext) {
+				skipNext = false;
+				continue;
+			}
+			String arg = (matcher.group(1) != null) ? matcher.group(1) : matcher.group(2);
+			if (OPT_SOURCE_JS.equals(arg) || OPT_OUTPUT_JS.equals(arg)) {
+				skipNext = true;
+				continue;
+			}
+			argsList.add(arg);
+		}
+		if (end != opt.length()) {
+			throw new IllegalArgumentException(MessageFormat.format("bad Closure Compiler options: {0}", options));
+		}
+
+		args = argsList.toArray(new String[argsList.size()]);
+
+		inMemoryCompiler = InMemoryCompiler.create(args);
+	}
+
+	/**
+	 * Returns whether the code can be optimized in memory with {@link #optimize(String, String, PrintStream)}.
+	 */
+	public boolean isInMemory() {
+		return inMemoryCompiler != null;
+	}
+
+	public String getOptions() {
+		StringBuilder options = new StringBuilder();
+		String separator = "";
+		for (String arg : args) {
+			options.append(separator).append(arg);
+			separator = " ";
+		}
+		return options.toString();
+	}
+
+	public boolean run(File sourceFile, File outputFile) {
+		try {
+			String[] newArgs = new String[args.length + 4];
+			newArgs[0] = OPT_SOURCE_JS;
+			newArgs[1] = sourceFile.getPath();
+			newArgs[2] = OPT_OUTPUT_JS;
+			newArgs[3] = outputFile.getPath();
+			for (int i = 0; i < args.length; ++i) {
+				newArgs[i + 4] = args[i];
+			}
+
+			Object runner = commandLineRunnerCtor.newInstance((Object) newArgs);
+			Integer result = (Integer) commandLineRunnerRun.invoke(runner);
+
+			return result == 0;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Optimizes the code in memory.
+	 * This method can be called from multiple threads.
+	 *
+	 * @param fileName file name of the code used in messages
+	 * @param code JavaScript code
+	 * @param err stream for the errors and warnings
+	 * @return optimized code, or null if failed
+	 */
+	public String optimize(String fileName, String code, PrintStream err) {
+		if (inMemoryCompiler == null) {
+			throw new IllegalStateException("in-memory optimization is not available");
+		}
+		try {
+			return inMemoryCompiler.optimize(fileName, code, err);
+		} catch (Exception e) {
+			e.printStackTrace(err);
+			return null;
+		}
+	}
+
+	/**
+	 * Closure Compiler's Java API.
+	 *
+	 * <p>A <code>Compiler</code> can be used only once, so it is created for each file,
+	 * but the externs and the settings are shared.</p>
+	 */
+	private static class InMemoryCompiler {
+
+		private final String compilationLevel;
+		private final String warningLevel;
+
+		private final Constructor<?> compilerCtor;
+		private final Method compilerCompile;
+		private final Method compilerToSource;
+		private final Constructor<?> compilerOptionsCtor;
+		private final Method compilationLevelSetOptions;
+		private final Method warningLevelSetOptions;
+		private final Method sourceFileFromCode;
+		private final Field resultSuccess;
+
+		private final List<?> externs;
+
+		/**
+		 * Returns an instance if the arguments can be mapped to the Java API, or null.
+		 */
+		public static InMemoryCompiler create(String[] args) {
+			String compilationLevel = "SIMPLE_OPTIMIZATIONS";
+			String warningLevel = "DEFAULT";
+			for (int i = 0; i < args.length; ++i) {
+				String arg = args[i];
+				String value = (i + 1 < args.length) ? unquote(args[i + 1]) : null;
+				if (OPT_COMPILATION_LEVEL.equals(arg) && value != null) {
+					compilationLevel = value;
+					++i;
+				} else if (OPT_WARNING_LEVEL.equals(arg) && value != null) {
+					warningLevel = value;
+					++i;
+				} else if (arg.startsWith(OPT_COMPILATION_LEVEL + "=")) {
+					compilationLevel = unquote(arg.substring(OPT_COMPILATION_LEVEL.length() + 1));
+				} else if (arg.startsWith(OPT_WARNING_LEVEL + "=")) {
+					warningLevel = unquote(arg.substring(OPT_WARNING_LEVEL.length() + 1));
+				} else {
+					return null;
+				}
+			}
+
+			try {
+				return new InMemoryCompiler(compilationLevel, warningLevel);
+			} catch (Exception e) {
+				// unknown version of Closure Compiler
+				return null;
+			}
+		}
+
+		private static String unquote(String arg) {
+			if (arg.length() >= 2 && arg.startsWith("\"") && arg.endsWith("\"")) {
+				return arg.substring(1, arg.length() - 1);
+			}
+			return arg;
+		}
+
+		private InMemoryCompiler(String compilationLevel, String warningLevel) throws Exception {
+			this.compilationLevel = compilationLevel;
+			this.warningLevel = warningLevel;
+
+			Class<?> compilerClass = Class.forName(PACKAGE + "Compiler");
+			Class<?> compilerOptionsClass = Class.forName(PACKAGE + "CompilerOptions");
+			Class<?> compilationLevelClass = Class.forName(PACKAGE + "CompilationLevel");
+			Class<?> warningLevelClass = Class.forName(PACKAGE + "WarningLevel");
+			Class<?> sourceFileClass = Class.forName(PACKAGE + "SourceFile");
+			Class<?> resultClass = Class.forName(PACKAGE + "Result");
+
+			compilerCtor = compilerClass.getConstructor(PrintStream.class);
+			compilerCompile = compilerClass.getMethod("compile", List.class, List.class, compilerOptionsClass);
+			compilerToSource = compilerClass.getMethod("toSource");
+			compilerOptionsCtor = compilerOptionsClass.getConstructor();
+			compilationLevelSetOptions = compilationLevelClass.getMethod("setOptionsForCompilationLevel", compilerOptionsClass);
+			warningLevelSetOptions = warningLevelClass.getMethod("setOptionsForWarningLevel", compilerOptionsClass);
+			sourceFileFromCode = sourceFileClass.getMethod("fromCode", String.class, String.class);
+			resultSuccess = resultClass.getField("success");
+
+			// validate the levels
+			enumValue(compilationLevelClass, compilationLevel);
+			enumValue(warningLevelClass, warningLevel);
+
+			externs = loadExterns(compilerOptionsClass);
+		}
+
+		private static Object enumValue(Class<?> enumClass, String name) throws Exception {
+			return enumClass.getMethod("valueOf", String.class).invoke(null, name);
+		}
+
+		private static List<?> loadExterns(Class<?> compilerOptionsClass) throws Exception {
+			Class<?> runnerClass = Class.forName(PACKAGE + "CommandLineRunner");
+			try {
+				// newer versions: CommandLineRunner.getBuiltinExterns(CompilerOptions.Environment)
+				Class<?> environmentClass = Class.forName(PACKAGE + "CompilerOptions$Environment");
+				Method getBuiltinExterns = runnerClass.getMethod("getBuiltinExterns", environmentClass);
+				return (List<?>) getBuiltinExterns.invoke(null, enumValue(environmentClass, "BROWSER"));
+			} catch (ClassNotFoundException e) {
+				// fall through
+			} catch (NoSuchMethodException e) {
+				// fall through
+			}
+			// older versions: CommandLineRunner.getDefaultExterns()
+			return (List<?>) runnerClass.getMethod("getDefaultExterns").invoke(null);
+		}
+
+		public String optimize(String fileName, String code, PrintStream err) throws Exception {
+			Object options = compilerOptionsCtor.newInstance();
+			compilationLevelSetOptions.invoke(enumValue(compilationLevelSetOptions.getDeclaringClass(), compilationLevel), options);
+			warningLevelSetOptions.invoke(enumValue(warningLevelSetOptions.getDeclaringClass(), warningLevel), options);
+
+			List<Object> inputs = new ArrayList<Object>();
+			inputs.add(sourceFileFromCode.invoke(null, fileName, code));
+
+			Object compiler = compilerCtor.newInstance(err);
+			Object result = compilerCompile.invoke(compiler, externs, inputs, options);
+			if (!resultSuccess.getBoolean(result)) {
+				return null;
+			}
+			return (String) compilerToSource.invoke(compiler);
+		}
+	}
+}
@@ -22,54 +22,68 @@ package jruncoffeescript;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
-import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
 import java.text.MessageFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.script.ScriptContext;
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.JMException;
+import javax.script.ScriptEngineFactory;
 import javax.script.ScriptException;
 
 public class Coffee {
 
 	public static void main(String[] args) throws Exception {
 		Coffee coffee = new Coffee();
-		coffee.parseOptions(args);
-		coffee.run();
+		try {
+			coffee.parseOptions(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		int status = coffee.run();
+		if (status != 0) {
+			System.exit(status);
+		}
+	}
+
+	public Coffee() {
+		this(System.out, System.err);
+	}
+
+	Coffee(PrintStream out, PrintStream err) {
+		this.out = out;
+		this.err = err;
 	}
 
+	private final PrintStream out;
+	private final PrintStream err;
+
 	private boolean optCompile = false;
 	private boolean optHelp = false;
 	private boolean optVersion = false;
 	private boolean optSourceMap = false;
+	private boolean optMapAsync = false;
 	private boolean optBare = false;
 	private boolean optHeader = true;
 	private boolean optLiterate = false;
@@ -77,36 +91,118 @@ public class Coffee {
 	private boolean optVerbose = false;
 	private boolean optUpdate = false;
 	private boolean optWatch = false;
+	private long optWatchDelay = 500;
 	private String optClosure = null;
-
-	private ScriptEngine engine;
+	private String optJoin = null;
+	private final List<String> optIncludes = new ArrayList<String>();
+	private final List<String> optExcludes = new ArrayList<String>();
+	private int optJobs = 1;
+	private Integer optServerPort = null;
+	private Integer optConnectPort = null;
+	private Integer optServePort = null;
+	private final List<String> clientArgs = new ArrayList<String>();	// options to be sent to the compile server
+
+	private String optCodeCache = null;
+	private String optEngine = EngineProvider.DEFAULT;
+	private String optCache = null;
+	private String optRemoteCache = null;
+	private String optMetrics = null;
+	private String optGraph = null;
+	private boolean optDryRun = false;
+	private boolean optKeepGoing = false;
+	private String optReport = null;
+	private int optRecycleAfter = 0;
+	private int optRecycleHeap = 0;
+	private int optWarmUp = 0;
+	private boolean optPrint = false;
+	private boolean optStdio = false;
+	private boolean optStream = false;
+	private boolean optCheckpoint = false;
+
+	private CoffeeCompiler compiler;
+	private boolean warmUpStarted = false;
 	private final List<String> sourceFiles = new ArrayList<String>();
 
-	private ScheduledThreadPoolExecutor delayedCompileSchedule = null;
-	private Map<String, Object> delayedCompileTickets = null;
-
 	private ClosureRunner closureRunner = null;
+	private BuildCache buildCache = null;
+	private Map<String, String> toolVersions = null;	// versions of the compiler and the engine, for the cache keys
+	private BuildGraph buildGraph = null;
+	private final ErrorReport errorReport = new ErrorReport();
+	private CompileMetrics metrics = new CompileMetrics(null);
+
+	private ExecutorService mapWriter = null;	// writes the source maps in the background with --map-async
+	private final List<Future<Boolean>> pendingMaps = new ArrayList<Future<Boolean>>();
 
 	private static final String EXTENSION_JS = ".js";
 	private static final String EXTENSION_MAP = ".js.map";
 	private static final String EXTENSION_JS_TMP = ".js.tmp";	// source of closure compiler
 
-	private void initEngine() throws ScriptException, UnsupportedEncodingException, IOException {
-		if (engine != null) {
-			return;
+	private static final int SCAN_THREADS = 4;	// minimum number of threads to search the source files
+
+	private synchronized void initEngine() throws ScriptException, UnsupportedEncodingException, IOException {
+		if (compiler == null) {
+			File codeCacheDir = (optCodeCache != null) ? new File(optCodeCache) : null;
+			EngineProvider engineProvider = EngineProvider.forName(optEngine, codeCacheDir);
+			EnginePool enginePool = new EnginePool(optJobs, engineProvider, optVerbose ? getLog() : null, err);
+			enginePool.setMaxCompiles(optRecycleAfter);
+			enginePool.setHeapThreshold(optRecycleHeap);
+			compiler = new CoffeeCompiler(enginePool);
 		}
+		if (!compiler.isInitialized()) {
+			long startTime = System.nanoTime();
+			compiler.init();
+			metrics.addTime(CompileMetrics.Phase.INIT, System.nanoTime() - startTime);
+		}
+		if (optWarmUp > 0 && !warmUpStarted) {
+			warmUpStarted = true;
+			if (isWarmUpInBackground()) {
+				warmUpLater();
+			} else {
+				warmUp();
+			}
+		}
+	}
 
-		verbose("initialize script engine");
+	/**
+	 * The servers accept the requests while the engines are warmed up, unless the process is checkpointed.
+	 */
+	private boolean isWarmUpInBackground() {
+		return (optServerPort != null || optServePort != null) && !optCheckpoint;
+	}
 
-		ScriptEngineManager manager = new ScriptEngineManager();
-		engine = manager.getEngineByName("JavaScript");
-		engine.eval(readCoffeeScriptCompiler());
+	private void warmUp() throws ScriptException, IOException {
+		long startTime = System.nanoTime();
+		int count = compiler.warmUp(optWarmUp);
+		verbose("warmed up the script engines: {0} compilation(s) in {1,number,#} ms",
+				count, (System.nanoTime() - startTime) / 1000000);
+	}
+
+	private void warmUpLater() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					warmUp();
+				} catch (Exception e) {
+					err.println(MessageFormat.format("WARNING: cannot warm up the script engines: {0}", e));
+				}
+			}
+		}, "jruncoffeescript-warm-up");
+		thread.setDaemon(true);
+		thread.start();
 	}
 
 	public void parseOptions(String[] args) {
 		for (int i = 0; i < args.length; ++i) {
 			String opt = args[i];
 
+			if ("--connect".equals(opt)) {
+				optConnectPort = parsePort((i + 1 < args.length) ? args[i + 1] : "");
+				++i;
+				continue;
+			}
+			clientArgs.add(opt);
+
 			String[] subOpts;
 
 			if (opt.startsWith("--")) {
@@ -125,8 +221,17 @@ public class Coffee {
 					optVersion = true;
 				} else if ("--compile".equals(subOpt) || "c".equals(subOpt)) {
 					optCompile = true;
+				} else if ("--print".equals(subOpt) || "p".equals(subOpt)) {
+					optPrint = true;
+				} else if ("--stdio".equals(subOpt) || "s".equals(subOpt)) {
+					optStdio = true;
+				} else if ("--stream".equals(subOpt)) {
+					optStream = true;
 				} else if ("--map".equals(subOpt) || "m".equals(subOpt)) {
 					optSourceMap = true;
+				} else if ("--map-async".equals(subOpt)) {
+					optSourceMap = true;
+					optMapAsync = true;
 				} else if ("--bare".equals(subOpt) || "b".equals(subOpt)) {
 					optBare = true;
 				} else if ("--literate".equals(subOpt) || "l".equals(subOpt)) {
@@ -135,6 +240,9 @@ public class Coffee {
 					optHeader = false;
 				} else if ("--output".equals(subOpt) || "o".equals(subOpt)) {
 					optOutputDir = (i + 1 < args.length) ? args[i + 1] : (String) null;
+					if (i + 1 < args.length) {
+						clientArgs.add(args[i + 1]);
+					}
 					++i;
 				} else if ("--verbose".equals(subOpt)) {
 					optVerbose = true;
@@ -144,347 +252,1198 @@ public class Coffee {
 					optWatch = true;
 				} else if ("--closure".equals(subOpt)) {
 					optClosure = (i + 1 < args.length) ? args[i + 1] : (String) null;
+					if (i + 1 < args.length) {
+						clientArgs.add(args[i + 1]);
+					}
+					++i;
+				} else if ("--join".equals(subOpt)) {
+					optJoin = (i + 1 < args.length) ? args[i + 1] : (String) null;
+					if (i + 1 < args.length) {
+						clientArgs.add(args[i + 1]);
+					}
+					++i;
+				} else if ("--include".equals(subOpt) || "--exclude".equals(subOpt)) {
+					String glob = (i + 1 < args.length) ? args[i + 1] : "";
+					clientArgs.add(glob);
+					++i;
+					if (glob.length() == 0) {
+						throw new IllegalArgumentException(MessageFormat.format("Pattern is required: {0}", subOpt));
+					}
+					("--include".equals(subOpt) ? optIncludes : optExcludes).add(glob);
+				} else if ("--jobs".equals(subOpt) || "j".equals(subOpt)) {
+					String jobs = (i + 1 < args.length) ? args[i + 1] : "";
+					clientArgs.add(jobs);
+					++i;
+					try {
+						optJobs = Integer.parseInt(jobs);
+					} catch (NumberFormatException e) {
+						optJobs = 0;
+					}
+					if (optJobs < 1) {
+						throw new IllegalArgumentException(MessageFormat.format("Invalid number of jobs: {0}", jobs));
+					}
+				} else if ("--cache".equals(subOpt)) {
+					optCache = (i + 1 < args.length) ? args[i + 1] : (String) null;
+					if (i + 1 < args.length) {
+						clientArgs.add(args[i + 1]);
+					}
+					++i;
+				} else if ("--remote-cache".equals(subOpt)) {
+					optRemoteCache = (i + 1 < args.length) ? args[i + 1] : (String) null;
+					if (i + 1 < args.length) {
+						clientArgs.add(args[i + 1]);
+					}
+					++i;
+				} else if ("--graph".equals(subOpt)) {
+					optGraph = (i + 1 < args.length) ? args[i + 1] : (String) null;
+					if (i + 1 < args.length) {
+						clientArgs.add(args[i + 1]);
+					}
+					++i;
+				} else if ("--keep-going".equals(subOpt)) {
+					optKeepGoing = true;
+				} else if ("--report".equals(subOpt)) {
+					optReport = (i + 1 < args.length) ? args[i + 1] : (String) null;
+					if (i + 1 < args.length) {
+						clientArgs.add(args[i + 1]);
+					}
+					++i;
+					optKeepGoing = true;
+				} else if ("--dry-run".equals(subOpt)) {
+					optDryRun = true;
+				} else if ("--metrics".equals(subOpt)) {
+					optMetrics = (i + 1 < args.length) ? args[i + 1] : (String) null;
+					if (i + 1 < args.length) {
+						clientArgs.add(args[i + 1]);
+					}
+					++i;
+				} else if ("--recycle-after".equals(subOpt)) {
+					String compiles = (i + 1 < args.length) ? args[i + 1] : "";
+					clientArgs.add(compiles);
+					++i;
+					try {
+						optRecycleAfter = Integer.parseInt(compiles);
+					} catch (NumberFormatException e) {
+						optRecycleAfter = -1;
+					}
+					if (optRecycleAfter < 0) {
+						throw new IllegalArgumentException(MessageFormat.format("Invalid number of compilations: {0}", compiles));
+					}
+				} else if ("--warm-up".equals(subOpt)) {
+					String rounds = (i + 1 < args.length) ? args[i + 1] : "";
+					clientArgs.add(rounds);
+					++i;
+					try {
+						optWarmUp = Integer.parseInt(rounds);
+					} catch (NumberFormatException e) {
+						optWarmUp = -1;
+					}
+					if (optWarmUp < 0) {
+						throw new IllegalArgumentException(MessageFormat.format("Invalid number of rounds: {0}", rounds));
+					}
+				} else if ("--checkpoint".equals(subOpt)) {
+					optCheckpoint = true;
+				} else if ("--recycle-heap".equals(subOpt)) {
+					String percent = (i + 1 < args.length) ? args[i + 1] : "";
+					clientArgs.add(percent);
+					++i;
+					try {
+						optRecycleHeap = Integer.parseInt(percent);
+					} catch (NumberFormatException e) {
+						optRecycleHeap = -1;
+					}
+					if (optRecycleHeap < 0 || optRecycleHeap > 100) {
+						throw new IllegalArgumentException(MessageFormat.format("Invalid percentage: {0}", percent));
+					}
+				} else if ("--watch-delay".equals(subOpt)) {
+					String delay = (i + 1 < args.length) ? args[i + 1] : "";
+					clientArgs.add(delay);
+					++i;
+					try {
+						optWatchDelay = Long.parseLong(delay);
+					} catch (NumberFormatException e) {
+						optWatchDelay = -1;
+					}
+					if (optWatchDelay < 0) {
+						throw new IllegalArgumentException(MessageFormat.format("Invalid delay: {0}", delay));
+					}
+				} else if ("--engine".equals(subOpt)) {
+					optEngine = (i + 1 < args.length) ? args[i + 1] : "";
+					clientArgs.add(optEngine);
+					++i;
+					EngineProvider.forName(optEngine, null);	// validate the name
+				} else if ("--code-cache".equals(subOpt)) {
+					optCodeCache = (i + 1 < args.length) ? args[i + 1] : (String) null;
+					if (i + 1 < args.length) {
+						clientArgs.add(args[i + 1]);
+					}
+					++i;
+				} else if ("--serve".equals(subOpt)) {
+					optServePort = parsePort((i + 1 < args.length) ? args[i + 1] : "");
+					++i;
+				} else if ("--server".equals(subOpt)) {
+					optServerPort = parsePort((i + 1 < args.length) ? args[i + 1] : "");
 					++i;
 				} else {
-					System.err.println(MessageFormat.format("Unknown option: {0}", subOpt));
-					System.exit(1);
+					throw new IllegalArgumentException(MessageFormat.format("Unknown option: {0}", subOpt));
 				}
 			}
 		}
+
+		if (optJoin != null && optClosure != null) {
+			throw new IllegalArgumentException("--join cannot be used with --closure");
+		}
+		if (optJoin != null && (optGraph != null || optDryRun)) {
+			throw new IllegalArgumentException("--join cannot be used with --graph or --dry-run");
+		}
+		if (optWatch && optDryRun) {
+			throw new IllegalArgumentException("--watch cannot be used with --dry-run");
+		}
+		if ((optPrint || optStdio || optStream)
+				&& (optWatch || optJoin != null || optClosure != null || optGraph != null || optDryRun || optMapAsync)) {
+			throw new IllegalArgumentException("--print, --stdio and --stream cannot be used with --watch, --join, --closure, --graph, --dry-run or --map-async");
+		}
+		if ((optStdio || optStream) && !sourceFiles.isEmpty()) {
+			throw new IllegalArgumentException("--stdio and --stream read the source from stdin, not from files");
+		}
+		getSourceFilter();	// validate the patterns
+	}
+
+	private Integer parsePort(String port) {
+		try {
+			int portNumber = Integer.parseInt(port);
+			if (portNumber > 0 && portNumber <= 0xffff) {
+				return portNumber;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		throw new IllegalArgumentException(MessageFormat.format("Invalid port number: {0}", port));
 	}
 
-	public void run() throws Exception {
+	/**
+	 * Resolves relative source paths and the output directory against the specified directory.
+	 * This is used by the compile server, whose working directory differs from the client's one.
+	 */
+	void setBaseDirectory(File baseDir) {
+		for (int i = 0; i < sourceFiles.size(); ++i) {
+			sourceFiles.set(i, resolvePath(baseDir, sourceFiles.get(i)));
+		}
+		if (optOutputDir != null) {
+			optOutputDir = resolvePath(baseDir, optOutputDir);
+		}
+		if (optCache != null) {
+			optCache = resolvePath(baseDir, optCache);
+		}
+		if (optJoin != null) {
+			optJoin = resolvePath(baseDir, optJoin);
+		}
+		if (optMetrics != null) {
+			optMetrics = resolvePath(baseDir, optMetrics);
+		}
+		if (optGraph != null) {
+			optGraph = resolvePath(baseDir, optGraph);
+		}
+		if (optReport != null) {
+			optReport = resolvePath(baseDir, optReport);
+		}
+	}
+
+	private String resolvePath(File baseDir, String path) {
+		File f = new File(path);
+		return f.isAbsolute() ? path : new File(baseDir, path).getPath();
+	}
+
+	/**
+	 * Uses the initialized engines of another instance.
+	 * The number of parallel jobs follows the number of the shared engines,
+	 * and the metrics are added to the metrics of the other instance too.
+	 */
+	void shareEngines(Coffee coffee) throws ScriptException, IOException {
+		coffee.initEngine();
+		synchronized (this) {
+			compiler = coffee.compiler;
+			optJobs = compiler.getPoolSize();
+			metrics = new CompileMetrics(coffee.metrics);
+		}
+	}
+
+	/**
+	 * Checks whether the options can be processed by the compile server.
+	 */
+	void checkServerRequest() {
+		if (optWatch) {
+			throw new IllegalArgumentException("--watch is not supported by the compile server");
+		}
+		if (optServerPort != null || optConnectPort != null || optServePort != null) {
+			throw new IllegalArgumentException("--server, --connect and --serve are not allowed in the request");
+		}
+		if (optWarmUp > 0 || optCheckpoint) {
+			throw new IllegalArgumentException("--warm-up and --checkpoint are options of the server");
+		}
+		if (optStdio || optStream) {
+			throw new IllegalArgumentException("--stdio and --stream are not supported by the compile server");
+		}
+	}
+
+	/**
+	 * Runs the commands specified by the options.
+	 *
+	 * @return exit status
+	 */
+	public int run() throws Exception {
+		if (optConnectPort != null) {
+			return new CompileServer.Client(optConnectPort, out, err).run(clientArgs);
+		}
+
 		if (optHelp) {
 			showHelp();
-			return;
+			return 0;
 		}
 
 		if (optVersion) {
 			showVersion();
-			return;
+			return 0;
+		}
+
+		if (optCheckpoint) {
+			// before any file or socket is opened
+			initEngine();
+			verbose("checkpoint");
+			Checkpoint.checkpointRestore();
+			verbose("restored from the checkpoint");
+		}
+
+		if (optServerPort != null) {
+			initEngine();
+			registerMetrics();
+			new CompileServer(this, optServerPort, out, err).serve();
+			return 0;
+		}
+
+		if (optServePort != null) {
+			initEngine();
+			new DevServer(this, optServePort, getServeDirectories(), out, err, optVerbose ? out : null).serve();
+			return 0;
+		}
+
+		if (optStdio || optStream) {
+			StreamCompiler streamCompiler = new StreamCompiler(this);
+			int status = optStdio
+					? streamCompiler.compileStdio("[stdin]", System.in, out, err)
+					: streamCompiler.compileStream(System.in, out);
+			reportErrors();
+			writeMetrics();
+			return status;
+		}
+
+		if (optPrint) {
+			return printAll(scanSources(sourceFiles), !optKeepGoing) ? 0 : 1;
 		}
 
 		if (!optCompile) {
-			return;
+			if (optWarmUp > 0) {
+				// training run for a class data sharing archive
+				initEngine();
+			}
+			return 0;
 		}
 
 		if (optClosure != null) {
 			closureRunner = new ClosureRunner(optClosure);
 			if (optVerbose) {
 				verbose("Closure Compiler options: {0}", closureRunner.getOptions());
+				verbose("Closure Compiler runs {0}", closureRunner.isInMemory() ? "in memory" : "with CommandLineRunner");
 			}
 		}
 
-		List<String> pathList = makePathList(sourceFiles);
-		for (String path : pathList) {
-			boolean succeeded = compile(path);
-			if (!succeeded && !optWatch) {
-				System.exit(1);
+		if (optCache != null || optRemoteCache != null) {
+			List<ArtifactStore> stores = new ArrayList<ArtifactStore>();
+			if (optCache != null) {
+				stores.add(new DirectoryStore(new File(optCache)));
+			}
+			if (optRemoteCache != null) {
+				stores.add(new HttpStore(optRemoteCache, err));
 			}
+			buildCache = new BuildCache(stores);
+			verbose("Build cache: {0}", buildCache);
+		}
+
+		if (optGraph != null) {
+			buildGraph = BuildGraph.load(new File(optGraph), EnginePool.readCompilerVersion(), getGraphOptions());
+		}
+
+		boolean succeeded;
+		if (optJoin != null) {
+			succeeded = joinAll(toList(scanSources(sourceFiles)));
+		} else {
+			succeeded = compileAll(scanSources(sourceFiles), !optWatch && !optKeepGoing);
+			if (buildGraph != null) {
+				deleteOrphans();
+				saveGraph();
+			}
+		}
+		reportErrors();
+		writeMetrics();
+		if (!succeeded && !optWatch) {
+			return 1;
 		}
 
 		if (optWatch) {
-			watch(pathList);
+			registerMetrics();
+			watch();
 		}
+
+		return 0;
 	}
 
 	private void showHelp() {
-		System.out.println("Usage: java " + getClass().getName() + " [options] [path/to/script.coffee ...]");
-		System.out.println("  -b   --bare              compile without a top-level function wrapper");
-		System.out.println("  -c   --compile           compile to JavaScript and save as .js files");
-		System.out.println("  -h   --help              display this help message");
-		System.out.println("  -m   --map               generate source map and save as .js.map files");
-		System.out.println("       --no-header         suppress the \"Generated by\" header");
-		System.out.println("       --output DIR        set the output directory for compiled JavaScript");
-		System.out.println("  -l   --literate          treat input as literate style coffee-script");
-		System.out.println("  -v   --version           display the version number");
-		System.out.println("  -w   --watch             watch scripts for changes and rerun commands");
-		System.out.println("       --verbose           output more informations to stdout");
-		System.out.println("       --update            compile only if the source file is newer than the js file");
-		System.out.println("       --closure OPTIONS   call Google's Closure Compiler (requires compiler.jar in CLASSPATH)");
+		out.println("Usage: java " + getClass().getName() + " [options] [path/to/script.coffee ...]");
+		out.println("  -b   --bare              compile without a top-level function wrapper");
+		out.println("  -c   --compile           compile to JavaScript and save as .js files");
+		out.println("  -h   --help              display this help message");
+		out.println("  -m   --map               generate source map and save as .js.map files");
+		out.println("  -p   --print             print out the compiled JavaScript");
+		out.println("  -s   --stdio             listen for and compile scripts over stdio");
+		out.println("       --stream            compile a stream of framed scripts over stdio");
+		out.println("       --map-async         same as --map, but write the source maps after the js files");
+		out.println("       --no-header         suppress the \"Generated by\" header");
+		out.println("       --output DIR        set the output directory for compiled JavaScript");
+		out.println("  -l   --literate          treat input as literate style coffee-script");
+		out.println("  -v   --version           display the version number");
+		out.println("  -w   --watch             watch scripts for changes and rerun commands");
+		out.println("       --watch-delay MS    wait for more changes for the milliseconds before compiling (default: 500)");
+		out.println("       --verbose           output more informations to stdout");
+		out.println("       --update            compile only if the source file is newer than the js file");
+		out.println("       --closure OPTIONS   call Google's Closure Compiler (requires compiler.jar in CLASSPATH)");
+		out.println("       --join FILE         concatenate the compiled scripts into a single file");
+		out.println("  -j   --jobs N            compile files in parallel with N script engines");
+		out.println("       --include GLOB      compile only the files matching the pattern in directories");
+		out.println("       --exclude GLOB      skip the files and directories matching the pattern");
+		out.println("       --cache DIR         reuse the compiled files cached in the directory");
+		out.println("       --remote-cache URL  share the cached files on the HTTP server");
+		out.println("       --engine NAME       select the script engine (default, nashorn, graaljs, rhino)");
+		out.println("       --code-cache DIR    use the persistent code cache of Nashorn in the directory");
+		out.println("       --recycle-after N   recreate each script context after N compilations");
+		out.println("       --recycle-heap PCT  recreate a script context when the heap usage after GC exceeds PCT%");
+		out.println("       --warm-up N         compile a built-in corpus N times with each script engine first");
+		out.println("       --checkpoint        save the process with CRaC after the warm-up, to be restored later");
+		out.println("       --graph FILE        record the outputs of the source files to rebuild exactly what is changed");
+		out.println("       --keep-going        compile all files even if some of them have errors");
+		out.println("       --report FILE       write the errors as JSON, or Checkstyle XML if FILE ends with .xml");
+		out.println("       --dry-run           list the files which would be compiled or deleted");
+		out.println("       --metrics FILE      write the timings of the compilations as JSON");
+		out.println("       --serve PORT        serve the directories over HTTP, compiling the scripts on request");
+		out.println("       --server PORT       run as a compile server listening on the local port");
+		out.println("       --connect PORT      send the other options to the compile server");
 	}
 
 	private void showVersion() throws ScriptException, IOException {
 		initEngine();
 
-		Object obj = engine.eval("CoffeeScript.VERSION");
-		System.out.println(MessageFormat.format("CoffeeScript version {0}", obj));
+		out.println(MessageFormat.format("CoffeeScript version {0}", compiler.getVersion()));
 
-		System.out.println(MessageFormat.format("ScriptEngine: {0} {1}",
-				engine.getFactory().getEngineName(),
-				engine.getFactory().getEngineVersion()));
+		ScriptEngineFactory factory = compiler.getScriptEngineFactory();
+		out.println(MessageFormat.format("ScriptEngine: {0} {1}",
+				factory.getEngineName(),
+				factory.getEngineVersion()));
 	}
 
-	private List<String> makePathList(List<String> args) {
-		List<String> pathList = new ArrayList<String>();
-		for (String arg : args) {
-			File f = new File(arg);
-			if (f.isDirectory()) {
-				searchSourceFiles(pathList, f);
-			} else {
-				pathList.add(arg);
-			}
+	private boolean compileAll(SourceScanner.SourceIterator paths, boolean stopOnError) throws Exception {
+		boolean succeeded;
+		try {
+			succeeded = compileFiles(paths, stopOnError);
+		} finally {
+			paths.close();
 		}
-		return pathList;
+		return awaitSourceMaps() && succeeded;
 	}
 
-	private void searchSourceFiles(List<String> pathList, File dir) {
-		for (File f : dir.listFiles()) {
-			if (f.isDirectory()) {
-				searchSourceFiles(pathList, f);
-			} else {
-				String fileName = f.getName();
-				if (fileName.endsWith(".coffee")
-						|| fileName.endsWith(".litcoffee")
-						|| fileName.endsWith(".coffee.md")) {
+	private boolean compileFiles(Iterator<String> paths, boolean stopOnError) throws Exception {
+		if (optJobs <= 1) {
+			boolean allSucceeded = true;
+			while (paths.hasNext()) {
+				if (!compile(paths.next())) {
+					if (stopOnError) {
+						return false;
+					}
+					allSucceeded = false;
+				}
+			}
+			return allSucceeded;
+		}
 
-					pathList.add(f.getPath());
+		// Each file is compiled with its own message buffers, and the buffers are
+		// flushed in the order of the paths so the output doesn't depend on scheduling.
+		// Files are submitted as they are found, within a window ahead of the flushed file.
+		// One more thread than the script contexts reads, preprocesses and writes the files
+		// while the contexts are compiling the others.
+		ExecutorService executor = Executors.newFixedThreadPool(optJobs + 1);
+		try {
+			int window = optJobs * 4;
+			Deque<CompileTask> tasks = new ArrayDeque<CompileTask>();
+			Deque<Future<Boolean>> futures = new ArrayDeque<Future<Boolean>>();
+
+			boolean allSucceeded = true;
+			for (;;) {
+				while (tasks.size() < window && paths.hasNext()) {
+					CompileTask task = new CompileTask(paths.next());
+					tasks.add(task);
+					futures.add(executor.submit(task));
+				}
+				if (tasks.isEmpty()) {
+					break;
+				}
+
+				CompileTask task = tasks.remove();
+				boolean succeeded;
+				try {
+					succeeded = futures.remove().get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception) {
+						throw (Exception) cause;
+					}
+					throw e;
+				} finally {
+					task.flush();
+				}
+				if (!succeeded) {
+					if (stopOnError) {
+						return false;
+					}
+					allSucceeded = false;
 				}
 			}
+			return allSucceeded;
+		} finally {
+			executor.shutdownNow();
 		}
 	}
 
-	private void watch(List<String> pathList) throws IOException {
-		if (pathList.size() == 0) {
-			return;
+	private class CompileTask implements Callable<Boolean> {
+
+		private final String path;
+		private final CompileScheduler.Ticket ticket;
+		private final ByteArrayOutputStream outBuffer = new ByteArrayOutputStream();
+		private final ByteArrayOutputStream errBuffer = new ByteArrayOutputStream();
+
+		public CompileTask(String path) {
+			this(path, null);
 		}
 
-		Set<String> pathSet = new HashSet<String>();	// paths in absolute form
-		Set<String> dirs = new HashSet<String>();		// paths in absolute form
-		for (String path : pathList) {
-			File absPathFile = new File(path).getAbsoluteFile();
-			pathSet.add(absPathFile.getPath());
-			dirs.add(absPathFile.getParent());
+		public CompileTask(String path, CompileScheduler.Ticket ticket) {
+			this.path = path;
+			this.ticket = ticket;
 		}
 
-		FileSystem fs = FileSystems.getDefault();
-		WatchService ws = fs.newWatchService();
-		WatchEvent.Kind<?>[] eventKinds = {
-				StandardWatchEventKinds.ENTRY_MODIFY
-		};
-		for (String dir : dirs) {
-			Path pathObj = fs.getPath(dir);
-			pathObj.register(ws, eventKinds);
+		@Override
+		public Boolean call() throws Exception {
+			PrintStream out = new PrintStream(outBuffer);
+			PrintStream err = new PrintStream(errBuffer);
+			try {
+				return compile(path, out, err, ticket);
+			} finally {
+				out.close();
+				err.close();
+			}
 		}
 
-		// Sometimes watch-event comes twice when a file was updated.
-		// We use delayed task to run compiler efficiently.
-		prepareDelayedCompile();
+		public void flush() {
+			out.write(outBuffer.toByteArray(), 0, outBuffer.size());
+			out.flush();
+			err.write(errBuffer.toByteArray(), 0, errBuffer.size());
+			err.flush();
+		}
+	}
+
+	/**
+	 * Compiles the files and concatenates the results into the file specified by <code>--join</code>.
+	 *
+	 * <p>The compiled code is written in the order of the path list as soon as it is available,
+	 * so only a few compiled files are held in memory at once.
+	 * The source maps of the files are merged into a single source map.
+	 * The output files are replaced only if all files were compiled successfully.</p>
+	 */
+	private boolean joinAll(final List<String> pathList) throws Exception {
+		final File jsFile = getFileToSave(new File(optJoin).getAbsoluteFile(), EXTENSION_JS);
+		final File mapFile = getFileToSave(jsFile, EXTENSION_MAP);
+
+		if (optUpdate && !checkIfUpdated(pathList, jsFile)) {
+			verbose("skip (js file is up-to-date): {0}", jsFile);
+			return true;	// no error
+		}
+
+		File jsTmpFile = FileUtil.createTempFile(jsFile);
+		File mapTmpFile = optSourceMap ? FileUtil.createTempFile(mapFile) : null;
 
+		// files are compiled ahead of the writer within the window
+		ExecutorService executor = (optJobs > 1) ? Executors.newFixedThreadPool(optJobs) : null;
+		int window = (executor != null) ? optJobs * 2 : 1;
+		List<Future<CompileResult>> futures = new ArrayList<Future<CompileResult>>();
+
+		boolean succeeded = false;
+		Writer js = FileUtil.newWriter(jsTmpFile);
+		SourceMapWriter map = null;
 		try {
-			for (;;) {
-				WatchKey key = ws.take();
-				Path pathWatching = (Path) key.watchable();
-				for (WatchEvent<?> watchEvent : key.pollEvents()) {
-					Path target = (Path) watchEvent.context();
-					String filePath = pathWatching.resolve(target).toString();
-					if (pathSet.contains(filePath)) {
-						scheduleCompile(filePath);
+			if (optSourceMap) {
+				Writer mapWriter = FileUtil.newWriter(mapTmpFile);
+				map = new SourceMapWriter(mapWriter, getRelativePath(mapFile.getParent(), jsFile.getPath()));
+			}
+
+			int line = 0;	// line in the joined file
+			for (int i = 0; i < pathList.size(); ++i) {
+				while (futures.size() < pathList.size() && futures.size() < i + window) {
+					final String path = pathList.get(futures.size());
+					final boolean header = optHeader && futures.isEmpty();
+					Callable<CompileResult> task = new Callable<CompileResult>() {
+						@Override
+						public CompileResult call() throws Exception {
+							return compileUnit(path, jsFile, mapFile, header);
+						}
+					};
+					if (executor != null) {
+						futures.add(executor.submit(task));
+					} else {
+						FutureTask<CompileResult> future = new FutureTask<CompileResult>(task);
+						future.run();
+						futures.add(future);
+					}
+				}
+
+				CompileResult result;
+				try {
+					result = futures.get(i).get();
+					futures.set(i, null);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception) {
+						throw (Exception) cause;
 					}
+					throw e;
+				}
+
+				verbose("compile: {0}", new File(pathList.get(i)).getAbsoluteFile());
+				if (!result.isSuccess()) {
+					for (CompileError error : result.getErrors()) {
+						err.println(error.toString());
+						errorReport.add(error);
+					}
+					return false;	// error
+				}
+
+				String jsCompiledStr = result.getJs();
+				if (!jsCompiledStr.endsWith("\n")) {
+					jsCompiledStr += "\n";
+				}
+				js.write(jsCompiledStr);
+				if (map != null) {
+					result.getRawSourceMap().appendTo(map, line);
+				}
+				line += countLines(jsCompiledStr);
+			}
+
+			if (map != null) {
+				String mapUrl = URLEncoder.encode(mapFile.getName(), "UTF-8").replace("+", "%20");
+				js.write("\n//# sourceMappingURL=" + mapUrl + "\n");
+			}
+			succeeded = true;
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			js.close();
+			if (map != null) {
+				map.close();
+			}
+			if (!succeeded) {
+				jsTmpFile.delete();
+				if (mapTmpFile != null) {
+					mapTmpFile.delete();
 				}
-				key.reset();
 			}
-		} catch (InterruptedException e) {
-			// ignore
 		}
 
-		shutdownDelayedCompile();
+		verbose("  --> save js file: {0}", jsFile);
+		FileUtil.move(jsTmpFile, jsFile);
+		if (optSourceMap) {
+			verbose("  --> save map file: {0}", mapFile);
+			FileUtil.move(mapTmpFile, mapFile);
+		}
+		return true;	// no error
 	}
 
-	private void prepareDelayedCompile() {
-		delayedCompileSchedule = new ScheduledThreadPoolExecutor(1);
-		delayedCompileSchedule.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	private CompileResult compileUnit(String path, File jsFile, File mapFile, boolean header) throws ScriptException, IOException {
+		File sourceFile = new File(path).getAbsoluteFile();
+		CompileMetrics.Timer timer = metrics.start(sourceFile.getPath());
+		String source = readFile(sourceFile);
+		timer.addBytesIn(sourceFile.length());
+		timer.lap(CompileMetrics.Phase.READ);
+		CompileOptions options = getCompileOptions(sourceFile, jsFile, mapFile);
+		options.setHeader(header);
+		initEngine();
+		timer.skip();	// counted as INIT
+		CompileResult result = compiler.compile(source, options);
+		timer.lap(CompileMetrics.Phase.COMPILE);
+		timer.finish(result.isSuccess() ? CompileMetrics.Outcome.COMPILED : CompileMetrics.Outcome.FAILED);
+		return result;
+	}
+
+	private static int countLines(String text) {
+		int lines = 0;
+		for (int i = 0; i < text.length(); ++i) {
+			if (text.charAt(i) == '\n') {
+				++lines;
+			}
+		}
+		return lines;
+	}
 
-		delayedCompileTickets = new ConcurrentHashMap<String, Object>();
+	/**
+	 * Starts searching the source files in the arguments.
+	 * The files are returned as soon as they are found.
+	 */
+	private SourceScanner.SourceIterator scanSources(List<String> args) {
+		int parallelism = Math.max(SCAN_THREADS, Runtime.getRuntime().availableProcessors());
+		return new SourceScanner(getSourceFilter(), parallelism, err).scan(args);
 	}
 
-	private void shutdownDelayedCompile() {
-		if (delayedCompileSchedule != null) {
-			delayedCompileSchedule.shutdown();
+	/**
+	 * Returns the directories in the arguments, or the working directory if none.
+	 */
+	private List<String> getServeDirectories() {
+		List<String> dirs = new ArrayList<String>();
+		for (String path : sourceFiles) {
+			if (new File(path).isDirectory()) {
+				dirs.add(path);
+			}
+		}
+		if (dirs.isEmpty()) {
+			dirs.add(".");
 		}
+		return dirs;
 	}
 
-	private void scheduleCompile(final String filePath) {
-		final Object ticket = new Object();
-		delayedCompileTickets.put(filePath, ticket);
-		Runnable command = new Runnable() {
-			@Override
-			public void run() {
-				if (ticket != delayedCompileTickets.get(filePath)) {
-					// another command exists in the queue
-					return;
+	private static List<String> toList(SourceScanner.SourceIterator paths) {
+		List<String> list = new ArrayList<String>();
+		try {
+			while (paths.hasNext()) {
+				list.add(paths.next());
+			}
+		} finally {
+			paths.close();
+		}
+		return list;
+	}
+
+	static boolean isSourceFileName(String fileName) {
+		return fileName.endsWith(".coffee")
+				|| fileName.endsWith(".litcoffee")
+				|| fileName.endsWith(".coffee.md");
+	}
+
+	private void watch() throws IOException {
+		if (sourceFiles.size() == 0) {
+			return;
+		}
+
+		if (optJoin != null) {
+			// the whole bundle is rebuilt for every batch of changes
+			Watcher.Listener listener = new Watcher.Listener() {
+				@Override
+				public void sourcesChanged(List<String> paths) throws Exception {
+					joinAll(toList(scanSources(sourceFiles)));
 				}
 
-				if (!new File(filePath).exists()) {
-					return;
+				@Override
+				public void sourcesDeleted(List<String> paths) throws Exception {
+					joinAll(toList(scanSources(sourceFiles)));
 				}
+			};
+			new Watcher(sourceFiles, getSourceFilter(), optWatchDelay, listener, optVerbose ? out : null, err).run();
+			return;
+		}
 
+		final CompileScheduler scheduler = new CompileScheduler(new CompileScheduler.Worker() {
+			@Override
+			public void compile(String path, CompileScheduler.Ticket ticket) throws Exception {
+				CompileTask task = new CompileTask(path, ticket);
 				try {
-					compile(filePath);
-				} catch (UnsupportedEncodingException e) {
-					e.printStackTrace();
-				} catch (ScriptException e) {
-					e.printStackTrace();
-				} catch (FileNotFoundException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
-				} catch (URISyntaxException e) {
-					e.printStackTrace();
+					task.call();
+				} finally {
+					task.flush();
 				}
 			}
+
+			@Override
+			public void delete(String path) {
+				deleteOutputs(new File(path));
+			}
+
+			@Override
+			public void idle() throws Exception {
+				awaitSourceMaps();
+				saveGraph();
+				reportErrors();
+				writeMetrics();
+			}
+		}, optJobs, optVerbose ? out : null, err);
+
+		Watcher.Listener listener = new Watcher.Listener() {
+			@Override
+			public void sourcesChanged(List<String> paths) {
+				scheduler.submitChanged(paths);
+			}
+
+			@Override
+			public void sourcesDeleted(List<String> paths) {
+				scheduler.submitDeleted(paths);
+			}
 		};
-		delayedCompileSchedule.schedule(command, 500, TimeUnit.MILLISECONDS);
+
+		// Sometimes watch-event comes twice when a file was updated.
+		// Events are collected within the debounce window, and the scheduler drops the compilations
+		// superseded by later changes, so that the file being edited isn't kept waiting by a mass change.
+		try {
+			new Watcher(sourceFiles, getSourceFilter(), optWatchDelay, listener, optVerbose ? out : null, err).run();
+		} finally {
+			scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * Prints the summary of the errors and writes the report, with <code>--keep-going</code>.
+	 */
+	private void reportErrors() throws IOException {
+		if (!optKeepGoing) {
+			errorReport.clear();
+			return;
+		}
+		ErrorReport report = errorReport.drain();
+		if (!report.isEmpty()) {
+			report.printSummary(err);
+		}
+		if (optReport != null) {
+			verbose("save error report: {0}", optReport);
+			report.write(new File(optReport));
+		}
+	}
+
+	private void registerMetrics() {
+		try {
+			metrics.register();
+			verbose("metrics are available through JMX: {0}", CompileMetrics.OBJECT_NAME);
+		} catch (JMException e) {
+			err.println(MessageFormat.format("WARNING: cannot register the metrics: {0}", e));
+		}
+	}
+
+	private void writeMetrics() throws IOException {
+		if (optMetrics != null) {
+			verbose("save metrics: {0}", optMetrics);
+			metrics.writeJson(new File(optMetrics));
+		}
+	}
+
+	private void deleteOutputs(File sourceFile) {
+		if (buildGraph != null) {
+			for (File outputFile : buildGraph.remove(sourceFile.getAbsoluteFile())) {
+				deleteOutput(outputFile, out);
+			}
+		}
+		for (String extension : new String[] { EXTENSION_JS, EXTENSION_MAP }) {
+			File outputFile = getFileToSave(sourceFile.getAbsoluteFile(), extension);
+			if (buildGraph == null || !buildGraph.isRecorded(outputFile)) {
+				deleteOutput(outputFile, out);
+			}
+		}
+	}
+
+	private void deleteOutput(File outputFile, PrintStream out) {
+		if (outputFile.exists()) {
+			verbose(out, "delete: {0}", outputFile);
+			outputFile.delete();
+		}
+	}
+
+	/**
+	 * Deletes the outputs of the source files which were deleted since the last build.
+	 */
+	private void deleteOrphans() {
+		for (File sourceFile : buildGraph.findOrphans()) {
+			if (optDryRun) {
+				for (File outputFile : buildGraph.getOutputs(sourceFile)) {
+					out.println(MessageFormat.format("would delete: {0}", outputFile));
+				}
+				continue;
+			}
+			for (File outputFile : buildGraph.remove(sourceFile)) {
+				deleteOutput(outputFile, out);
+			}
+		}
+		buildGraph.resetVisits();
+	}
+
+	private void saveGraph() throws IOException {
+		if (buildGraph != null && !optDryRun) {
+			buildGraph.save();
+		}
+	}
+
+	/**
+	 * Returns the options which affect the outputs of all files.
+	 */
+	private String getGraphOptions() {
+		return MessageFormat.format("bare={0},header={1},literate={2},map={3},output={4},closure={5}",
+				optBare, optHeader, optLiterate, optSourceMap, optOutputDir, optClosure);
+	}
+
+	/**
+	 * Records the outputs of the source file in the build graph,
+	 * and deletes the outputs which were produced by the previous build but not anymore.
+	 */
+	private void recordOutputs(File sourceFile, long modified, long size, File jsFile, File mapFile, PrintStream out) {
+		if (buildGraph == null) {
+			return;
+		}
+		List<File> outputs = new ArrayList<File>();
+		outputs.add(jsFile);
+		if (optSourceMap) {
+			outputs.add(mapFile);
+		}
+		for (File outputFile : buildGraph.update(sourceFile, modified, size, outputs)) {
+			deleteOutput(outputFile, out);
+		}
+	}
+
+	private void invalidateOutputs(File sourceFile) {
+		if (buildGraph != null) {
+			buildGraph.invalidate(sourceFile);
+		}
 	}
 
 	public boolean compile(String sourceFilePath) throws UnsupportedEncodingException, ScriptException, FileNotFoundException, IOException, URISyntaxException {
-		initEngine();
+		return compile(sourceFilePath, out, err, null);
+	}
 
+	/**
+	 * @param ticket ticket of the watch mode, which stops the compilation superseded by a newer change, or null
+	 */
+	private boolean compile(String sourceFilePath, PrintStream out, PrintStream err, CompileScheduler.Ticket ticket) throws UnsupportedEncodingException, ScriptException, FileNotFoundException, IOException, URISyntaxException {
 		File sourceFile = new File(sourceFilePath).getAbsoluteFile();
 		File jsFile = getFileToSave(sourceFile, EXTENSION_JS);		// target .js file
 		File mapFile = getFileToSave(sourceFile, EXTENSION_MAP);
 		File jsOutputFile;		// file to save JS code
-		if (closureRunner != null) {
+		if (closureRunner != null && !closureRunner.isInMemory()) {
 			jsOutputFile = getFileToSave(sourceFile, EXTENSION_JS_TMP);
 		} else {
 			jsOutputFile = jsFile;
 		}
 
-		if (optUpdate && !checkIfUpdated(sourceFile, jsFile)) {
-			verbose("skip (js file is up-to-date): {0}", sourceFile);
+		CompileMetrics.Timer timer = metrics.start(sourceFile.getPath());
+
+		// the timestamp and the size are taken before reading, so a change during the compilation is caught next time
+		long modified = (buildGraph != null) ? sourceFile.lastModified() : 0;
+		long size = (buildGraph != null) ? sourceFile.length() : 0;
+		if (buildGraph != null) {
+			if (buildGraph.isUpToDate(sourceFile, modified, size)) {
+				verbose(out, "skip (source file is not changed): {0}", sourceFile);
+				timer.finish(CompileMetrics.Outcome.SKIPPED);
+				return true;	// no error
+			}
+		} else if (optUpdate && !checkIfUpdated(sourceFile, jsFile)) {
+			verbose(out, "skip (js file is up-to-date): {0}", sourceFile);
+			timer.finish(CompileMetrics.Outcome.SKIPPED);
 			return true;	// no error
 		}
 
-		verbose("compile: {0}", sourceFile);
-
-		engine.getContext().removeAttribute("csOptions", ScriptContext.ENGINE_SCOPE);
-		engine.getContext().removeAttribute("jsOutput", ScriptContext.ENGINE_SCOPE);
-		engine.getContext().removeAttribute("csError", ScriptContext.ENGINE_SCOPE);
+		if (optDryRun) {
+			out.println(MessageFormat.format("would compile: {0}", sourceFile));
+			timer.finish(CompileMetrics.Outcome.SKIPPED);
+			return true;	// no error
+		}
 
 		String source = readFile(sourceFile);
-		engine.getContext().setAttribute("csSource", source, ScriptContext.ENGINE_SCOPE);
-
-		// Some option values have to be a JavaScript object which has the "toJSON" method.
-		// I don't know how to create a JavaScript object in Java code without using engine-specific classes.
-		// So we use JavaScript code to build an object.
-		String buildOption = getCodeToBuildOption("csOptions", sourceFile, jsFile, mapFile);
-		engine.eval(buildOption);
-
-		engine.eval("try { jsOutput = CoffeeScript.compile(csSource, csOptions) } catch(e) { csError = e.toString() }");
-
-		Object jsOutput = engine.getContext().getAttribute("jsOutput", ScriptContext.ENGINE_SCOPE);
-		Object csError = engine.getContext().getAttribute("csError", ScriptContext.ENGINE_SCOPE);
-
-		if (csError != null) {
-			System.err.println(csError.toString());
-			return false;	// error
+		timer.addBytesIn(sourceFile.length());
+		timer.lap(CompileMetrics.Phase.READ);
+		if (isCancelled(ticket, sourceFile, timer, out)) {
+			return true;	// no error
 		}
 
-		Object jsCompiled;
-		Object jsMap;
-		if (optSourceMap) {
-			if (!(jsOutput instanceof Map<?, ?>)) {
-				throw new IllegalStateException(MessageFormat.format("Unexpected result: {0}", jsOutput.getClass()));
+		String cacheKey = null;
+		if (buildCache != null) {
+			cacheKey = computeOutputKey(sourceFile, source, jsFile, mapFile);
+			boolean restored = buildCache.restore(cacheKey, jsFile, optSourceMap ? mapFile : null);
+			timer.lap(CompileMetrics.Phase.CACHE);
+			timer.setCacheHit(restored);
+			if (restored) {
+				verbose(out, "restore from cache: {0}", sourceFile);
+				addBytesOut(timer, jsFile, mapFile);
+				recordOutputs(sourceFile, modified, size, jsFile, mapFile, out);
+				timer.finish(CompileMetrics.Outcome.RESTORED);
+				return true;	// no error
 			}
-			jsCompiled = ((Map<?, ?>) jsOutput).get("js");
-			jsMap = ((Map<?, ?>) jsOutput).get("v3SourceMap");
-		} else {
-			jsCompiled = jsOutput;
-			jsMap = null;
 		}
 
-		if (jsCompiled == null) {
-			throw new IllegalStateException(MessageFormat.format("Missing compiled code: {0}", jsOutput.getClass()));
+		verbose(out, "compile: {0}", sourceFile);
+
+		initEngine();
+		timer.skip();	// counted as INIT
+
+		CompileResult result = compileSource(sourceFile, source, jsFile, mapFile);
+		timer.lap(CompileMetrics.Phase.COMPILE);
+		if (!result.isSuccess()) {
+			for (CompileError error : result.getErrors()) {
+				err.println(error.toString());
+				errorReport.add(error);
+			}
+			invalidateOutputs(sourceFile);
+			timer.finish(CompileMetrics.Outcome.FAILED);
+			return false;	// error
 		}
 
-		if (optSourceMap && jsMap == null) {
-			throw new IllegalStateException(MessageFormat.format("Missing source map: {0}", jsOutput.getClass()));
+		// the engine can't be interrupted, but Closure Compiler and the writes are skipped
+		if (isCancelled(ticket, sourceFile, timer, out)) {
+			return true;	// no error
 		}
 
-		String jsCompiledStr = jsCompiled.toString();
-		if (optSourceMap) {
-			// map file is created in the same directory as the js file
-			String mapPath = mapFile.getName();
-			// String mapPath = getRelativePath(jsFile.getParentFile().getPath(), mapFile.getPath());
-			String mapUrl = URLEncoder.encode(mapPath, "UTF-8").replace("+", "%20");
-			jsCompiledStr += "\n//# sourceMappingURL=" + mapUrl + "\n";
+		String jsCompiledStr = result.getJs();
+
+		if (closureRunner != null && closureRunner.isInMemory()) {
+			verbose(out, "  --> compile with Closure Compiler: {0}", jsFile);
+			String optimized = closureRunner.optimize(jsFile.getName(), jsCompiledStr, err);
+			timer.lap(CompileMetrics.Phase.CLOSURE);
+			if (optimized == null) {
+				verbose(out, "Error in Closure Compiler");
+				invalidateOutputs(sourceFile);
+				timer.finish(CompileMetrics.Outcome.FAILED);
+				return true;	// no error, but the result is not saved
+			}
+			jsCompiledStr = optimized;
 		}
 
-		verbose("  --> save js file: {0}", jsOutputFile);
+		verbose(out, "  --> save js file: {0}", jsOutputFile);
 		save(jsOutputFile, jsCompiledStr);
+		timer.lap(CompileMetrics.Phase.WRITE);
 
+		boolean mapPending = false;
 		if (optSourceMap) {
-			verbose("  --> save map file: {0}", mapFile);
-			save(mapFile, jsMap.toString());
+			if (optMapAsync) {
+				verbose(out, "  --> save map file later: {0}", mapFile);
+				mapPending = true;
+			} else {
+				verbose(out, "  --> save map file: {0}", mapFile);
+				save(mapFile, result.getSourceMap());
+				timer.lap(CompileMetrics.Phase.MAP);
+			}
 		}
 
-		if (closureRunner != null) {
-			verbose("  --> compile with Closure Compiler: {0}", jsFile);
+		if (closureRunner != null && !closureRunner.isInMemory()) {
+			verbose(out, "  --> compile with Closure Compiler: {0}", jsFile);
 			boolean success = closureRunner.run(jsOutputFile, jsFile);
 			jsOutputFile.delete();
+			timer.lap(CompileMetrics.Phase.CLOSURE);
 			if (!success) {
-				verbose("Error in Closure Compiler");
+				verbose(out, "Error in Closure Compiler");
+				invalidateOutputs(sourceFile);
+				timer.finish(CompileMetrics.Outcome.FAILED);
+				return true;	// no error, but the result is not cached
 			}
 		}
 
+		if (mapPending) {
+			// the entry of the build cache is stored after the source map is written
+			timer.addBytesOut(jsFile.length());
+			saveSourceMapLater(mapFile, result, jsFile, cacheKey);
+			recordOutputs(sourceFile, modified, size, jsFile, mapFile, out);
+			timer.finish(CompileMetrics.Outcome.COMPILED);
+			return true;	// no error
+		}
+
+		addBytesOut(timer, jsFile, mapFile);
+
+		if (buildCache != null) {
+			verbose(out, "  --> store in cache: {0}", cacheKey);
+			buildCache.store(cacheKey, jsFile, optSourceMap ? mapFile : null);
+			timer.lap(CompileMetrics.Phase.CACHE);
+		}
+
+		recordOutputs(sourceFile, modified, size, jsFile, mapFile, out);
+		timer.finish(CompileMetrics.Outcome.COMPILED);
 		return true;	// no error
 	}
 
-	private String readFile(File file) throws UnsupportedEncodingException, FileNotFoundException, IOException {
-		FileInputStream s = new FileInputStream(file);
-		byte[] content;
-		try {
-			content = new byte[(int) file.length()];
-			s.read(content);
-		} finally {
-			s.close();
+	private boolean isCancelled(CompileScheduler.Ticket ticket, File sourceFile, CompileMetrics.Timer timer, PrintStream out) {
+		if (ticket == null || !ticket.isCancelled()) {
+			return false;
 		}
-		return new String(content, "UTF-8");
+		verbose(out, "cancel (source file is changed again): {0}", sourceFile);
+		timer.finish(CompileMetrics.Outcome.SKIPPED);
+		return true;
 	}
 
-	private String readCoffeeScriptCompiler() throws UnsupportedEncodingException, IOException {
-		String scriptPath = "/coffee-script.js";
-		if (engine.getFactory().getEngineName().contains("Rhino")) {
-			// Rhino engine which is provided by JRE7 doesn't support "Using reserved word as a property name" feature in ECMAScript5.
-			// It causes error at the property name "double".
-			// We use a modified source file to avoid this issue.
-			scriptPath = "/coffee-script-for-rhino.js";
-			System.err.println("WARNING: use coffee-script-for-rhino.js");
+	/**
+	 * Serializes and writes the source map on the background thread.
+	 */
+	private void saveSourceMapLater(final File mapFile, final CompileResult result, final File jsFile, final String cacheKey) {
+		Callable<Boolean> task = new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				try {
+					save(mapFile, result.getSourceMap());
+					if (buildCache != null) {
+						buildCache.store(cacheKey, jsFile, mapFile);
+					}
+					return true;
+				} catch (IOException e) {
+					err.println(MessageFormat.format("cannot save the source map: {0} ({1})", mapFile, e));
+					return false;
+				}
+			}
+		};
+		synchronized (pendingMaps) {
+			if (mapWriter == null) {
+				mapWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "jruncoffeescript-map-writer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			pendingMaps.add(mapWriter.submit(task));
+		}
+	}
+
+	/**
+	 * Waits until all source maps are written.
+	 *
+	 * @return false if any source map couldn't be written
+	 */
+	private boolean awaitSourceMaps() throws InterruptedException {
+		List<Future<Boolean>> futures;
+		synchronized (pendingMaps) {
+			futures = new ArrayList<Future<Boolean>>(pendingMaps);
+			pendingMaps.clear();
+		}
+		boolean allSucceeded = true;
+		for (Future<Boolean> future : futures) {
+			try {
+				allSucceeded &= future.get();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
 		}
+		return allSucceeded;
+	}
 
-		verbose("compiler script: {0}", scriptPath);
+	/**
+	 * Compiles the source code in memory.
+	 * With the source map, the URL of the map file is added to the JavaScript code.
+	 */
+	CompileResult compileSource(File sourceFile, String source, File jsFile, File mapFile) throws ScriptException, IOException {
+		initEngine();
+		CompileResult result = compiler.compile(source, getCompileOptions(sourceFile, jsFile, mapFile));
+		if (!result.isSuccess() || !optSourceMap) {
+			return result;
+		}
+		// map file is created in the same directory as the js file
+		String mapPath = mapFile.getName();
+		// String mapPath = getRelativePath(jsFile.getParentFile().getPath(), mapFile.getPath());
+		String mapUrl = URLEncoder.encode(mapPath, "UTF-8").replace("+", "%20");
+		return new CompileResult(result.getJs() + "\n//# sourceMappingURL=" + mapUrl + "\n", result.getRawSourceMap());
+	}
 
-		ByteArrayOutputStream o = new ByteArrayOutputStream();
+	/**
+	 * Compiles the source code which is not read from a file, with the options of the command line.
+	 * The source map refers to the source by the name, and doesn't have the location of the JavaScript code.
+	 *
+	 * @param name name of the source, for the literate style, the messages and the source map
+	 */
+	CompileResult compileDocument(String name, String source) throws ScriptException, IOException {
+		initEngine();
+		File nameFile = new File(name);
+		CompileOptions options = new CompileOptions();
+		options.setSourceMap(optSourceMap);
+		options.setBare(optBare);
+		options.setHeader(optHeader);
+		options.setLiterate(isLiterate(nameFile) ? true : optLiterate);
+		options.setFilename(name);
+		options.setGeneratedFile(getFileToSave(nameFile, EXTENSION_JS).getName());
+		options.setSourceRoot("");
+		options.setSourceFiles(Collections.singletonList(name));
+
+		CompileMetrics.Timer timer = metrics.start(name);
+		CompileResult result = compiler.compile(source, options);
+		timer.lap(CompileMetrics.Phase.COMPILE);
+		if (!result.isSuccess()) {
+			for (CompileError error : result.getErrors()) {
+				errorReport.add(error);
+			}
+			timer.finish(CompileMetrics.Outcome.FAILED);
+			return result;
+		}
+		timer.finish(CompileMetrics.Outcome.COMPILED);
+		return result;
+	}
+
+	/**
+	 * Prints the compiled code of the files to stdout, in the order of the paths, with <code>--print</code>.
+	 */
+	private boolean printAll(SourceScanner.SourceIterator paths, boolean stopOnError) throws Exception {
+		boolean allSucceeded = true;
 		try {
-			InputStream s = Coffee.class.getResourceAsStream(scriptPath);
-			try {
-				byte[] chunk = new byte[200000];
-				for (;;) {
-					int n = s.read(chunk);
-					if (n <= 0) {
+			while (paths.hasNext()) {
+				String path = paths.next();
+				verbose("compile: {0}", path);
+				CompileResult result = compileDocument(path, readFile(new File(path)));
+				if (!StreamCompiler.printResult(result, out, err)) {
+					allSucceeded = false;
+					if (stopOnError) {
 						break;
 					}
-					o.write(chunk, 0, n);
 				}
-			} finally {
-				s.close();
 			}
 		} finally {
-			o.close();
+			paths.close();
 		}
-		return o.toString("UTF-8");
+		out.flush();
+		reportErrors();
+		writeMetrics();
+		return allSucceeded;
 	}
 
-	private void save(File file, String text) throws UnsupportedEncodingException, FileNotFoundException, IOException {
-		byte[] content = text.getBytes("UTF-8");
-		FileOutputStream s = new FileOutputStream(file);
-		try {
-			s.write(content);
-		} finally {
-			s.close();
+	/**
+	 * Returns the key which identifies the output of the source code, for the caches.
+	 */
+	String computeOutputKey(File sourceFile, String source, File jsFile, File mapFile) throws IOException {
+		return BuildCache.computeKey(source, getCacheKeyOptions(sourceFile, jsFile, mapFile));
+	}
+
+	boolean isSourceMapEnabled() {
+		return optSourceMap;
+	}
+
+	SourceFilter getSourceFilter() {
+		return new SourceFilter(optIncludes, optExcludes);
+	}
+
+	private void addBytesOut(CompileMetrics.Timer timer, File jsFile, File mapFile) {
+		timer.addBytesOut(jsFile.length());
+		if (optSourceMap) {
+			timer.addBytesOut(mapFile.length());
 		}
 	}
 
+	private String readFile(File file) throws IOException {
+		return FileUtil.readText(file);
+	}
+
+	private void save(File file, String text) throws IOException {
+		FileUtil.writeText(file, text);
+	}
+
 	private File getFileToSave(File sourceFile, String extension) {
 		String sourceFileName = sourceFile.getName();
 		String fileName;
@@ -503,28 +1462,58 @@ public class Coffee {
 		return new File(dir, fileName).getAbsoluteFile();
 	}
 
-	private String getCodeToBuildOption(String veriable, File sourceFile, File jsFile, File mapFile) {
+	private CompileOptions getCompileOptions(File sourceFile, File jsFile, File mapFile) {
 		String mapFileDir = mapFile.getParentFile().getPath();
 		String jsFilePath = getRelativePath(mapFileDir, jsFile.getPath());
 
 		List<String> sourceFiles = new ArrayList<String>();
 		sourceFiles.add(getRelativePath(mapFileDir, sourceFile.getPath()));
 
-		Map<String, Object> options = new HashMap<String, Object>();
+		CompileOptions options = new CompileOptions();
 
 		// compile options
-		options.put("sourceMap", optSourceMap);
-		options.put("bare", optBare);
-		options.put("header", optHeader);
-		options.put("literate", isLiterate(sourceFile) ? true : optLiterate);
-		options.put("filename", sourceFile.getPath());
+		options.setSourceMap(optSourceMap);
+		options.setBare(optBare);
+		options.setHeader(optHeader);
+		options.setLiterate(isLiterate(sourceFile) ? true : optLiterate);
+		options.setFilename(sourceFile.getPath());
 
 		// source map options
-		options.put("generatedFile", jsFilePath);
-		options.put("sourceRoot", "");
-		options.put("sourceFiles", sourceFiles);
+		options.setGeneratedFile(jsFilePath);
+		options.setSourceRoot("");
+		options.setSourceFiles(sourceFiles);
 
-		return veriable + " = " + toJSON(options);
+		return options;
+	}
+
+	/**
+	 * Returns the options which affect the output files.
+	 */
+	private Map<String, Object> getCacheKeyOptions(File sourceFile, File jsFile, File mapFile) throws IOException {
+		Map<String, Object> options = getCompileOptions(sourceFile, jsFile, mapFile).toMap();
+		// the file name is used only in error messages
+		options.remove("filename");
+		if (optSourceMap) {
+			// sourceMappingURL
+			options.put("mapFileName", mapFile.getName());
+		} else {
+			options.remove("generatedFile");
+			options.remove("sourceFiles");
+		}
+		options.put("closure", (closureRunner != null) ? closureRunner.getOptions() : null);
+		// the output may differ by the compiler and the engine, when the cache is shared by machines
+		options.putAll(getToolVersions());
+		return options;
+	}
+
+	private synchronized Map<String, String> getToolVersions() throws IOException {
+		if (toolVersions == null) {
+			File codeCacheDir = (optCodeCache != null) ? new File(optCodeCache) : null;
+			toolVersions = new HashMap<String, String>();
+			toolVersions.put("compiler", EnginePool.readCompilerVersion());
+			toolVersions.put("engine", EngineProvider.forName(optEngine, codeCacheDir).describeEngine());
+		}
+		return toolVersions;
 	}
 
 	private String getRelativePath(String base, String target) {
@@ -546,56 +1535,6 @@ public class Coffee {
 		}
 	}
 
-	private String toJSON(Map<?, ?> map) {
-		StringBuilder s = new StringBuilder();
-		s.append("{ ");
-		String sep = "";
-		for (Map.Entry<?, ?> entry : map.entrySet()) {
-			String key = entry.getKey().toString();
-			String value = toJSONValue(entry.getValue());
-			s.append(sep).append("\"").append(key).append("\" : ").append(value);
-			sep = ", ";
-		}
-		s.append(" }");
-		return s.toString();
-	}
-
-	private String toJSON(List<?> list) {
-		StringBuilder s = new StringBuilder();
-		s.append("[ ");
-		String sep = "";
-		for (Object obj : list) {
-			s.append(sep).append(toJSONValue(obj));
-			sep = ", ";
-		}
-		s.append(" ]");
-		return s.toString();
-	}
-
-	private String toJSONValue(Object obj) {
-		if (obj instanceof Map<?, ?>) {
-			return toJSON((Map<?, ?>) obj);
-		}
-		if (obj instanceof List<?>) {
-			return toJSON((List<?>) obj);
-		}
-		if (obj instanceof String) {
-			return "\"" + escapeJS((String) obj) + "\"";
-		}
-		if (obj instanceof Boolean) {
-			return obj.toString();
-		}
-		if (obj == null) {
-			return "null";
-		}
-		throw new IllegalArgumentException(obj.getClass().toString());
-	}
-
-	private String escapeJS(String text) {
-		// escape only backslash and double quote
-		return text.replaceAll("[\\\\\"]", "\\\\$0");
-	}
-
 	private boolean isLiterate(File sourceFile) {
 		String path = sourceFile.getPath();
 		if (path.endsWith(".litcoffee") || path.endsWith(".coffee.md")) {
@@ -606,109 +1545,36 @@ public class Coffee {
 	}
 
 	private void verbose(String format, Object... params) {
-		if (optVerbose) {
-			System.out.println(MessageFormat.format(format, params));
-		}
+		verbose(getLog(), format, params);
 	}
 
-	private boolean checkIfUpdated(File sourceFile, File jsFile) {
-		if (jsFile.exists() && jsFile.lastModified() > sourceFile.lastModified()) {
-			return false;
-		} else {
-			return true;
-		}
+	/**
+	 * Returns the stream for the verbose messages, which is stderr if the compiled code is written to stdout.
+	 */
+	private PrintStream getLog() {
+		return (optPrint || optStdio || optStream) ? err : out;
 	}
 
-	private static class ClosureRunner {
-
-		private static final String OPT_SOURCE_JS = "--js";
-		private static final String OPT_OUTPUT_JS = "--js_output_file";
-
-		private final String[] args;
-
-		private final Class<?> commandLineRunnerClass;
-		private final Constructor<?> commandLineRunnerCtor;
-		private final Method commandLineRunnerRun;
-
-		public ClosureRunner(String options) throws ClassNotFoundException, NoSuchMethodException {
-
-			commandLineRunnerClass = Class.forName("com.google.javascript.jscomp.CommandLineRunner");
-			commandLineRunnerCtor = commandLineRunnerClass.getDeclaredConstructor(String[].class);
-			commandLineRunnerCtor.setAccessible(true);
-			commandLineRunnerRun = commandLineRunnerClass.getSuperclass().getDeclaredMethod("doRun");
-			commandLineRunnerRun.setAccessible(true);
-
-			if (options == null) {
-				args = new String[0];
-				return;
-			}
-
-			String opt = options.trim();
-			if (opt.length() == 0) {
-				args = new String[0];
-				return;
-			}
-
-			String argPattern = "(\"[^\"]*\"|[^\\s\"][^\\s]*)";
-			Pattern pattern = Pattern.compile("^(?:" + argPattern + "(?:\\s+" + argPattern + ")*)?$", Pattern.DOTALL);
-			Matcher matcher = pattern.matcher(opt);
-			if (!matcher.matches()) {
-				throw new IllegalArgumentException(MessageFormat.format("bad Closure Compiler options: {0}", options));
-			}
-
-			List<String> argsList = new ArrayList<String>();
-			boolean skipNext = false;
-			for (int gr = 1; gr <= matcher.groupCount(); ++gr) {
-				System.out.println("Match: " + matcher.group(gr));
-				if (skipNext) {
-					skipNext = false;
-					continue;
-				}
-				String arg = matcher.group(gr);
-				if (OPT_SOURCE_JS.equals(arg) || OPT_OUTPUT_JS.equals(arg)) {
-					skipNext = true;
-					continue;
-				}
-				argsList.add(arg);
-			}
-
-			args = argsList.toArray(new String[argsList.size()]);
-
-			System.out.println("Closure Options: " + options);
-			for (String arg : args) {
-				System.out.println("Closure Option: " + arg);
-			}
+	private void verbose(PrintStream out, String format, Object... params) {
+		if (optVerbose) {
+			out.println(MessageFormat.format(format, params));
 		}
+	}
 
-		public String getOptions() {
-			StringBuilder options = new StringBuilder();
-			String separator = "";
-			for (String arg : args) {
-				options.append(separator).append(arg);
-				separator = " ";
+	private boolean checkIfUpdated(List<String> pathList, File jsFile) {
+		for (String path : pathList) {
+			if (checkIfUpdated(new File(path), jsFile)) {
+				return true;
 			}
-			return options.toString();
 		}
+		return false;
+	}
 
-		public boolean run(File sourceFile, File outputFile) {
-			try {
-				String[] newArgs = new String[args.length + 4];
-				newArgs[0] = OPT_SOURCE_JS;
-				newArgs[1] = sourceFile.getPath();
-				newArgs[2] = OPT_OUTPUT_JS;
-				newArgs[3] = outputFile.getPath();
-				for (int i = 0; i < args.length; ++i) {
-					newArgs[i + 4] = args[i];
-				}
-
-				Object runner = commandLineRunnerCtor.newInstance((Object) newArgs);
-				Integer result = (Integer) commandLineRunnerRun.invoke(runner);
-
-				return result == 0;
-			} catch (Exception e) {
-				e.printStackTrace();
-				return false;
-			}
+	private boolean checkIfUpdated(File sourceFile, File jsFile) {
+		if (jsFile.exists() && jsFile.lastModified() > sourceFile.lastModified()) {
+			return false;
+		} else {
+			return true;
 		}
 	}
 
@@ -0,0 +1,193 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+import jruncoffeescript.EnginePool.CompilerContext;
+
+/**
+ * CoffeeScript compiler which compiles the source code in memory.
+ *
+ * <p>This class is thread-safe. Each compilation uses one of the pooled script contexts,
+ * so up to the size of the pool can run concurrently.
+ * The script engines are initialized on the first compilation, or by {@link #init()}.</p>
+ *
+ * <pre>
+ * CoffeeCompiler compiler = new CoffeeCompiler(4);
+ * CompileOptions options = new CompileOptions();
+ * options.setBare(true);
+ * CompileResult result = compiler.compile("square = (x) -&gt; x * x", options);
+ * </pre>
+ */
+public class CoffeeCompiler {
+
+	private final EnginePool enginePool;
+
+	/**
+	 * Creates a compiler which has as many script contexts as the available processors.
+	 */
+	public CoffeeCompiler() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param poolSize number of script contexts
+	 */
+	public CoffeeCompiler(int poolSize) {
+		this(poolSize, EngineProvider.forName(EngineProvider.DEFAULT, null));
+	}
+
+	/**
+	 * @param poolSize number of script contexts
+	 * @param engineProvider provider of the script engines
+	 */
+	public CoffeeCompiler(int poolSize, EngineProvider engineProvider) {
+		this(new EnginePool(poolSize, engineProvider, null, System.err));
+	}
+
+	CoffeeCompiler(EnginePool enginePool) {
+		this.enginePool = enginePool;
+	}
+
+	/**
+	 * Initializes the script engines in advance.
+	 */
+	public void init() throws ScriptException, IOException {
+		enginePool.init();
+	}
+
+	/**
+	 * Initializes the script engines, and compiles a built-in corpus with each of them,
+	 * so that the first compilations run as fast as the later ones.
+	 *
+	 * @param rounds number of times to compile the corpus per script context
+	 * @return number of the compilations
+	 */
+	public int warmUp(int rounds) throws ScriptException, IOException {
+		return WarmUp.run(this, rounds);
+	}
+
+	boolean isInitialized() {
+		return enginePool.isInitialized();
+	}
+
+	/**
+	 * Returns the number of compilations which can run concurrently.
+	 */
+	public int getPoolSize() {
+		return enginePool.size();
+	}
+
+	/**
+	 * Returns the version of the CoffeeScript compiler.
+	 */
+	public String getVersion() throws ScriptException, IOException {
+		enginePool.init();
+		CompilerContext context = enginePool.acquire();
+		try {
+			return String.valueOf(context.eval("CoffeeScript.VERSION"));
+		} finally {
+			enginePool.release(context);
+		}
+	}
+
+	/**
+	 * Returns the script engine factory which provides the script engines.
+	 */
+	public ScriptEngineFactory getScriptEngineFactory() throws ScriptException, IOException {
+		enginePool.init();
+		CompilerContext context = enginePool.acquire();
+		try {
+			return context.getEngine().getFactory();
+		} finally {
+			enginePool.release(context);
+		}
+	}
+
+	public CompileResult compile(Reader source, CompileOptions options) throws ScriptException, IOException {
+		StringBuilder s = new StringBuilder();
+		char[] buffer = new char[8192];
+		for (;;) {
+			int n = source.read(buffer);
+			if (n < 0) {
+				break;
+			}
+			s.append(buffer, 0, n);
+		}
+		return compile(s.toString(), options);
+	}
+
+	public CompileResult compile(String source, CompileOptions options) throws ScriptException, IOException {
+		enginePool.init();
+
+		if (options.isLiterate()) {
+			// converted before a context is acquired, so that the engine is used only for the compilation
+			source = Literate.invert(source);
+			options = new CompileOptions(options);
+			options.setLiterate(false);
+		}
+
+		Map<?, ?> output;
+		CompilerContext context = enginePool.acquire();
+		try {
+			output = context.compile(source, options);
+		} finally {
+			enginePool.release(context);
+		}
+
+		Object error = output.get("error");
+		if (error != null) {
+			Object message = output.get("message");
+			return new CompileResult(new CompileError(
+					options.getFilename(),
+					toInt(output.get("line")),
+					toInt(output.get("column")),
+					(message != null) ? message.toString() : error.toString(),
+					error.toString()));
+		}
+
+		Object jsCompiled = output.get("js");
+		Object mappings = output.get("mappings");
+
+		if (jsCompiled == null) {
+			throw new IllegalStateException("Missing compiled code");
+		}
+
+		if (options.isSourceMap() && mappings == null) {
+			throw new IllegalStateException("Missing source map");
+		}
+
+		// the source map is serialized when it is requested
+		RawSourceMap sourceMap = (mappings != null) ? RawSourceMap.parse(mappings.toString(), options) : null;
+		return new CompileResult(jsCompiled.toString(), sourceMap);
+	}
+
+	private int toInt(Object value) {
+		return (value instanceof Number) ? ((Number) value).intValue() : 0;
+	}
+}
@@ -0,0 +1,305 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.ScriptException;
+
+/**
+ * Compiles the source files in the build tool's JVM.
+ *
+ * <p>This class has no dependency on the build tools.
+ * Ant uses it as a task through <code>&lt;taskdef&gt;</code>, because it has setters for the attributes
+ * and the <code>execute()</code> method, and Gradle can call it from a task action.
+ * The initialized script engines are kept in a static registry keyed by all options which affect the engines,
+ * so they are reused by the following invocations as long as this class stays loaded:
+ * by all modules of a build, and across the builds in a Gradle daemon.</p>
+ *
+ * <pre>
+ * &lt;taskdef name="coffee" classname="jruncoffeescript.CoffeeTask" classpath="..."/&gt;
+ * &lt;coffee srcdir="src" destdir="build/js" map="true" update="true"/&gt;
+ * </pre>
+ */
+public class CoffeeTask {
+
+	// initialized instances which own the engines (engine arguments -> instance)
+	private static final Map<String, Coffee> warmEngines = new HashMap<String, Coffee>();
+
+	private final List<File> sources = new ArrayList<File>();
+	private File destdir = null;
+	private final List<String> includes = new ArrayList<String>();
+	private final List<String> excludes = new ArrayList<String>();
+	private boolean map = false;
+	private boolean bare = false;
+	private boolean header = true;
+	private boolean literate = false;
+	private boolean update = true;
+	private boolean verbose = false;
+	private File join = null;
+	private File cache = null;
+	private String remoteCache = null;
+	private File metrics = null;
+	private String closure = null;
+	private String engine = EngineProvider.DEFAULT;
+	private File codeCache = null;
+	private int warmUp = 0;
+	private int jobs = Runtime.getRuntime().availableProcessors();
+	private boolean failOnError = true;
+
+	/**
+	 * Adds a source file or a directory which contains the source files.
+	 * Ant sets it once as the attribute, and the other build tools may call it for each source.
+	 */
+	public void setSrcdir(File srcdir) {
+		sources.add(srcdir);
+	}
+
+	public void setDestdir(File destdir) {
+		this.destdir = destdir;
+	}
+
+	/**
+	 * Sets the patterns of the files to compile, separated by commas or spaces.
+	 */
+	public void setIncludes(String patterns) {
+		addPatterns(includes, patterns);
+	}
+
+	/**
+	 * Sets the patterns of the files and the directories to skip, separated by commas or spaces.
+	 */
+	public void setExcludes(String patterns) {
+		addPatterns(excludes, patterns);
+	}
+
+	private static void addPatterns(List<String> list, String patterns) {
+		for (String pattern : patterns.split("[,\\s]+")) {
+			if (pattern.length() > 0) {
+				list.add(pattern);
+			}
+		}
+	}
+
+	public void setMap(boolean map) {
+		this.map = map;
+	}
+
+	public void setBare(boolean bare) {
+		this.bare = bare;
+	}
+
+	public void setHeader(boolean header) {
+		this.header = header;
+	}
+
+	public void setLiterate(boolean literate) {
+		this.literate = literate;
+	}
+
+	/**
+	 * Sets whether to compile only the files which are newer than the outputs (default: true).
+	 */
+	public void setUpdate(boolean update) {
+		this.update = update;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	public void setJoin(File join) {
+		this.join = join;
+	}
+
+	public void setCache(File cache) {
+		this.cache = cache;
+	}
+
+	public void setRemoteCache(String remoteCache) {
+		this.remoteCache = remoteCache;
+	}
+
+	public void setMetrics(File metrics) {
+		this.metrics = metrics;
+	}
+
+	public void setClosure(String closure) {
+		this.closure = closure;
+	}
+
+	public void setEngine(String engine) {
+		this.engine = engine;
+	}
+
+	public void setCodeCache(File codeCache) {
+		this.codeCache = codeCache;
+	}
+
+	/**
+	 * Sets the number of times to compile the built-in corpus when the engines are created.
+	 */
+	public void setWarmUp(int warmUp) {
+		this.warmUp = warmUp;
+	}
+
+	/**
+	 * Sets the number of script engines (default: the number of the available processors).
+	 * It takes effect when the engines are initialized for the first time.
+	 */
+	public void setJobs(int jobs) {
+		this.jobs = jobs;
+	}
+
+	/**
+	 * Sets whether to throw an exception if any file has a compile error (default: true).
+	 */
+	public void setFailOnError(boolean failOnError) {
+		this.failOnError = failOnError;
+	}
+
+	/**
+	 * Returns the JavaScript file which is created from the source file.
+	 * Build tools can use it to declare the outputs.
+	 */
+	public File getOutputFile(File sourceFile) {
+		String name = sourceFile.getName();
+		int dot = name.lastIndexOf('.');
+		name = ((dot >= 0) ? name.substring(0, dot) : name) + ".js";
+		return new File((destdir != null) ? destdir : sourceFile.getAbsoluteFile().getParentFile(), name);
+	}
+
+	/**
+	 * Compiles the source files.
+	 *
+	 * @throws ScriptException if any file has a compile error and <code>failOnError</code> is true
+	 */
+	public void execute() throws Exception {
+		if (sources.isEmpty()) {
+			throw new IllegalArgumentException("No source is specified");
+		}
+		if (destdir != null) {
+			destdir.mkdirs();
+		}
+
+		Coffee coffee = new Coffee();
+		coffee.parseOptions(getArguments());
+		coffee.shareEngines(getWarmEngines());
+		int status = coffee.run();
+		if (status != 0 && failOnError) {
+			throw new ScriptException("CoffeeScript compilation failed");
+		}
+	}
+
+	private Coffee getWarmEngines() {
+		// the engines are created with these arguments, so any difference needs other engines
+		String[] engineArgs = getEngineArguments();
+		String key = Arrays.toString(engineArgs);
+		synchronized (warmEngines) {
+			Coffee coffee = warmEngines.get(key);
+			if (coffee == null) {
+				coffee = new Coffee();
+				coffee.parseOptions(engineArgs);
+				warmEngines.put(key, coffee);
+			}
+			return coffee;	// initialized by Coffee#shareEngines
+		}
+	}
+
+	private String[] getEngineArguments() {
+		List<String> engineArgs = new ArrayList<String>();
+		engineArgs.add("--engine");
+		engineArgs.add(engine);
+		engineArgs.add("--jobs");
+		engineArgs.add(String.valueOf(jobs));
+		if (codeCache != null) {
+			engineArgs.add("--code-cache");
+			engineArgs.add(codeCache.getAbsolutePath());
+		}
+		if (warmUp > 0) {
+			engineArgs.add("--warm-up");
+			engineArgs.add(String.valueOf(warmUp));
+		}
+		if (verbose) {
+			engineArgs.add("--verbose");
+		}
+		return engineArgs.toArray(new String[engineArgs.size()]);
+	}
+
+	String[] getArguments() {
+		List<String> args = new ArrayList<String>();
+		args.add("--compile");
+		if (map) {
+			args.add("--map");
+		}
+		if (bare) {
+			args.add("--bare");
+		}
+		if (!header) {
+			args.add("--no-header");
+		}
+		if (literate) {
+			args.add("--literate");
+		}
+		if (update) {
+			args.add("--update");
+		}
+		if (verbose) {
+			args.add("--verbose");
+		}
+		addOption(args, "--output", destdir);
+		addOption(args, "--join", join);
+		addOption(args, "--cache", cache);
+		if (remoteCache != null) {
+			args.add("--remote-cache");
+			args.add(remoteCache);
+		}
+		addOption(args, "--metrics", metrics);
+		if (closure != null) {
+			args.add("--closure");
+			args.add(closure);
+		}
+		for (String include : includes) {
+			args.add("--include");
+			args.add(include);
+		}
+		for (String exclude : excludes) {
+			args.add("--exclude");
+			args.add(exclude);
+		}
+		for (File source : sources) {
+			args.add(source.getAbsolutePath());
+		}
+		return args.toArray(new String[args.size()]);
+	}
+
+	private static void addOption(List<String> args, String name, File file) {
+		if (file != null) {
+			args.add(name);
+			args.add(file.getAbsolutePath());
+		}
+	}
+}
@@ -0,0 +1,79 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+/**
+ * Error reported by the CoffeeScript compiler.
+ */
+public class CompileError {
+
+	private final String filename;
+	private final int line;
+	private final int column;
+	private final String message;
+	private final String report;
+
+	/**
+	 * @param filename file name of the source, or null
+	 * @param line line number (1-based), or 0 if unknown
+	 * @param column column number (1-based), or 0 if unknown
+	 * @param message error message
+	 * @param report whole error report of the compiler including the code snippet
+	 */
+	public CompileError(String filename, int line, int column, String message, String report) {
+		this.filename = filename;
+		this.line = line;
+		this.column = column;
+		this.message = message;
+		this.report = report;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * Returns the line number (1-based), or 0 if unknown.
+	 */
+	public int getLine() {
+		return line;
+	}
+
+	/**
+	 * Returns the column number (1-based), or 0 if unknown.
+	 */
+	public int getColumn() {
+		return column;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns the error report in the same form as the <code>coffee</code> command.
+	 */
+	@Override
+	public String toString() {
+		return report;
+	}
+}
@@ -0,0 +1,361 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Timings and counters of the compilations.
+ *
+ * <p>Each file is measured by a {@link Timer}, which adds the time since the previous lap to a phase.
+ * The latest record of each file is kept for the report, so the memory is bounded by the number of the source files.
+ * Updates are also added to the parent metrics if any, so the compile server can aggregate its requests.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class CompileMetrics implements CompileMetricsMXBean {
+
+	/**
+	 * Phases of the compilation.
+	 */
+	enum Phase {
+		/** initializing the script engines */
+		INIT,
+		/** reading the source file */
+		READ,
+		/** computing the cache key, restoring or storing the cache entry */
+		CACHE,
+		/** running <code>CoffeeScript.compile</code> */
+		COMPILE,
+		/** writing the source map */
+		MAP,
+		/** running Closure Compiler */
+		CLOSURE,
+		/** writing the JavaScript file */
+		WRITE;
+
+		String key() {
+			return name().toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	/**
+	 * Results of the files.
+	 */
+	enum Outcome {
+		COMPILED, RESTORED, SKIPPED, FAILED;
+
+		String key() {
+			return name().toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	static final String OBJECT_NAME = "jruncoffeescript:type=CompileMetrics";
+
+	private static final int SLOWEST_FILES = 10;
+
+	private final CompileMetrics parent;
+
+	private final long startTime = System.nanoTime();
+	private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+	private final AtomicLongArray outcomes = new AtomicLongArray(Outcome.values().length);
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final Map<String, Timer> files = new ConcurrentHashMap<String, Timer>();	// path -> latest record
+
+	/**
+	 * @param parent metrics which receive the same updates, or null
+	 */
+	public CompileMetrics(CompileMetrics parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * Starts measuring a file.
+	 */
+	public Timer start(String path) {
+		return new Timer(path);
+	}
+
+	/**
+	 * Adds the time which doesn't belong to a file, such as the initialization of the engines.
+	 */
+	public void addTime(Phase phase, long nanos) {
+		phaseNanos.addAndGet(phase.ordinal(), nanos);
+		if (parent != null) {
+			parent.addTime(phase, nanos);
+		}
+	}
+
+	private void add(Timer timer) {
+		for (Phase phase : Phase.values()) {
+			phaseNanos.addAndGet(phase.ordinal(), timer.phaseNanos[phase.ordinal()]);
+		}
+		outcomes.incrementAndGet(timer.outcome.ordinal());
+		if (timer.cacheHit != null) {
+			(timer.cacheHit ? cacheHits : cacheMisses).incrementAndGet();
+		}
+		bytesIn.addAndGet(timer.bytesIn);
+		bytesOut.addAndGet(timer.bytesOut);
+		files.put(timer.path, timer);
+		if (parent != null) {
+			parent.add(timer);
+		}
+	}
+
+	/**
+	 * Registers this object to the platform MBean server.
+	 * An object which was registered before is replaced.
+	 */
+	public void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(new StandardMBean(this, CompileMetricsMXBean.class, true), name);
+	}
+
+	/**
+	 * Writes the aggregate and the per-file metrics as JSON.
+	 * Files are listed from the slowest.
+	 */
+	public void writeJson(File file) throws IOException {
+		Writer w = FileUtil.newWriter(file);
+		try {
+			w.write("{\n\"elapsedMillis\": ");
+			w.write(formatMillis(System.nanoTime() - startTime));
+			w.write(",\n\"files\": {");
+			for (Outcome outcome : Outcome.values()) {
+				w.write((outcome.ordinal() > 0) ? ", " : "");
+				w.write("\"" + outcome.key() + "\": " + outcomes.get(outcome.ordinal()));
+			}
+			w.write("},\n\"cache\": {\"hits\": " + cacheHits.get() + ", \"misses\": " + cacheMisses.get() + "}");
+			w.write(",\n\"bytesIn\": " + bytesIn.get());
+			w.write(",\n\"bytesOut\": " + bytesOut.get());
+			w.write(",\n\"phases\": ");
+			writePhases(w, phaseNanos);
+			w.write(",\n\"perFile\": [");
+			List<Timer> timers = getFilesBySlowest();
+			for (int i = 0; i < timers.size(); ++i) {
+				Timer timer = timers.get(i);
+				w.write((i > 0) ? ",\n" : "\n");
+				w.write("{\"path\": ");
+				Json.quote(w, timer.path);
+				w.write(", \"outcome\": \"" + timer.outcome.key() + "\"");
+				w.write(", \"bytesIn\": " + timer.bytesIn);
+				w.write(", \"bytesOut\": " + timer.bytesOut);
+				w.write(", \"totalMillis\": " + formatMillis(timer.getTotalNanos()));
+				w.write(", \"phases\": ");
+				writePhases(w, new AtomicLongArray(timer.phaseNanos));
+				w.write("}");
+			}
+			w.write("\n]\n}\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	private static void writePhases(Writer w, AtomicLongArray nanos) throws IOException {
+		w.write("{");
+		for (Phase phase : Phase.values()) {
+			w.write((phase.ordinal() > 0) ? ", " : "");
+			w.write("\"" + phase.key() + "\": " + formatMillis(nanos.get(phase.ordinal())));
+		}
+		w.write("}");
+	}
+
+	private static String formatMillis(long nanos) {
+		return String.format(Locale.ENGLISH, "%.3f", nanos / 1e6);
+	}
+
+	private List<Timer> getFilesBySlowest() {
+		List<Timer> timers = new ArrayList<Timer>(files.values());
+		Collections.sort(timers, new Comparator<Timer>() {
+			@Override
+			public int compare(Timer t1, Timer t2) {
+				long n1 = t1.getTotalNanos();
+				long n2 = t2.getTotalNanos();
+				return (n1 < n2) ? 1 : (n1 > n2) ? -1 : t1.path.compareTo(t2.path);
+			}
+		});
+		return timers;
+	}
+
+	@Override
+	public long getCompiledFiles() {
+		return outcomes.get(Outcome.COMPILED.ordinal());
+	}
+
+	@Override
+	public long getRestoredFiles() {
+		return outcomes.get(Outcome.RESTORED.ordinal());
+	}
+
+	@Override
+	public long getSkippedFiles() {
+		return outcomes.get(Outcome.SKIPPED.ordinal());
+	}
+
+	@Override
+	public long getFailedFiles() {
+		return outcomes.get(Outcome.FAILED.ordinal());
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	@Override
+	public Map<String, Long> getPhaseMillis() {
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		for (Phase phase : Phase.values()) {
+			map.put(phase.key(), TimeUnit.NANOSECONDS.toMillis(phaseNanos.get(phase.ordinal())));
+		}
+		return map;
+	}
+
+	@Override
+	public Map<String, Long> getSlowestFiles() {
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		for (Timer timer : getFilesBySlowest()) {
+			if (map.size() >= SLOWEST_FILES) {
+				break;
+			}
+			map.put(timer.path, TimeUnit.NANOSECONDS.toMillis(timer.getTotalNanos()));
+		}
+		return map;
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < phaseNanos.length(); ++i) {
+			phaseNanos.set(i, 0);
+		}
+		for (int i = 0; i < outcomes.length(); ++i) {
+			outcomes.set(i, 0);
+		}
+		cacheHits.set(0);
+		cacheMisses.set(0);
+		bytesIn.set(0);
+		bytesOut.set(0);
+		files.clear();
+	}
+
+	/**
+	 * Measures the phases of a file. A timer is used by one thread.
+	 */
+	class Timer {
+
+		private final String path;
+		private final long[] phaseNanos = new long[Phase.values().length];
+		private long lapTime = System.nanoTime();
+		private Outcome outcome;
+		private Boolean cacheHit = null;
+		private long bytesIn = 0;
+		private long bytesOut = 0;
+
+		Timer(String path) {
+			this.path = path;
+		}
+
+		/**
+		 * Adds the time since the previous lap to the phase.
+		 */
+		public void lap(Phase phase) {
+			long now = System.nanoTime();
+			phaseNanos[phase.ordinal()] += now - lapTime;
+			lapTime = now;
+		}
+
+		/**
+		 * Starts the next lap without adding the time to any phase.
+		 */
+		public void skip() {
+			lapTime = System.nanoTime();
+		}
+
+		public void setCacheHit(boolean cacheHit) {
+			this.cacheHit = cacheHit;
+		}
+
+		public void addBytesIn(long bytes) {
+			bytesIn += bytes;
+		}
+
+		public void addBytesOut(long bytes) {
+			bytesOut += bytes;
+		}
+
+		/**
+		 * Finishes measuring and adds the record to the metrics.
+		 */
+		public void finish(Outcome outcome) {
+			this.outcome = outcome;
+			add(this);
+		}
+
+		long getTotalNanos() {
+			long total = 0;
+			for (long nanos : phaseNanos) {
+				total += nanos;
+			}
+			return total;
+		}
+	}
+}
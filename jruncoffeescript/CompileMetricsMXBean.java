@@ -0,0 +1,79 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.util.Map;
+
+/**
+ * Management interface of the compile metrics, registered as
+ * <code>jruncoffeescript:type=CompileMetrics</code> in watch mode and in the compile server.
+ */
+public interface CompileMetricsMXBean {
+
+	/**
+	 * Returns the number of the files which were compiled successfully.
+	 */
+	long getCompiledFiles();
+
+	/**
+	 * Returns the number of the files which were restored from the build cache.
+	 */
+	long getRestoredFiles();
+
+	/**
+	 * Returns the number of the files which were skipped because the outputs were up-to-date.
+	 */
+	long getSkippedFiles();
+
+	/**
+	 * Returns the number of the files which had compile errors.
+	 */
+	long getFailedFiles();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	/**
+	 * Returns the total size of the source files in bytes.
+	 */
+	long getBytesIn();
+
+	/**
+	 * Returns the total size of the output files in bytes.
+	 */
+	long getBytesOut();
+
+	/**
+	 * Returns the total time of each phase in milliseconds.
+	 */
+	Map<String, Long> getPhaseMillis();
+
+	/**
+	 * Returns the slowest files and their total time in milliseconds.
+	 */
+	Map<String, Long> getSlowestFiles();
+
+	/**
+	 * Clears all counters.
+	 */
+	void reset();
+}
@@ -0,0 +1,166 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Options of the CoffeeScript compiler.
+ */
+public class CompileOptions {
+
+	private boolean bare = false;
+	private boolean header = true;
+	private boolean literate = false;
+	private boolean sourceMap = false;
+	private String filename = null;
+	private String generatedFile = null;
+	private String sourceRoot = "";
+	private List<String> sourceFiles = Collections.emptyList();
+
+	public CompileOptions() {
+	}
+
+	public CompileOptions(CompileOptions options) {
+		this.bare = options.bare;
+		this.header = options.header;
+		this.literate = options.literate;
+		this.sourceMap = options.sourceMap;
+		this.filename = options.filename;
+		this.generatedFile = options.generatedFile;
+		this.sourceRoot = options.sourceRoot;
+		this.sourceFiles = options.sourceFiles;
+	}
+
+	/**
+	 * Whether to compile without a top-level function wrapper.
+	 */
+	public boolean isBare() {
+		return bare;
+	}
+
+	public void setBare(boolean bare) {
+		this.bare = bare;
+	}
+
+	/**
+	 * Whether to output the "Generated by" header.
+	 */
+	public boolean isHeader() {
+		return header;
+	}
+
+	public void setHeader(boolean header) {
+		this.header = header;
+	}
+
+	/**
+	 * Whether to treat the input as literate style coffee-script.
+	 */
+	public boolean isLiterate() {
+		return literate;
+	}
+
+	public void setLiterate(boolean literate) {
+		this.literate = literate;
+	}
+
+	/**
+	 * Whether to generate a source map.
+	 */
+	public boolean isSourceMap() {
+		return sourceMap;
+	}
+
+	public void setSourceMap(boolean sourceMap) {
+		this.sourceMap = sourceMap;
+	}
+
+	/**
+	 * File name of the source, which is used in error messages.
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	public void setFilename(String filename) {
+		this.filename = filename;
+	}
+
+	/**
+	 * Path of the JavaScript file in the source map.
+	 */
+	public String getGeneratedFile() {
+		return generatedFile;
+	}
+
+	public void setGeneratedFile(String generatedFile) {
+		this.generatedFile = generatedFile;
+	}
+
+	/**
+	 * Source root in the source map.
+	 */
+	public String getSourceRoot() {
+		return sourceRoot;
+	}
+
+	public void setSourceRoot(String sourceRoot) {
+		this.sourceRoot = sourceRoot;
+	}
+
+	/**
+	 * Paths of the source files in the source map.
+	 */
+	public List<String> getSourceFiles() {
+		return sourceFiles;
+	}
+
+	public void setSourceFiles(List<String> sourceFiles) {
+		this.sourceFiles = Collections.unmodifiableList(new ArrayList<String>(sourceFiles));
+	}
+
+	/**
+	 * Returns the options in the form of the options object of <code>CoffeeScript.compile</code>.
+	 */
+	Map<String, Object> toMap() {
+		Map<String, Object> options = new HashMap<String, Object>();
+
+		// compile options
+		options.put("sourceMap", sourceMap);
+		options.put("bare", bare);
+		options.put("header", header);
+		options.put("literate", literate);
+		options.put("filename", filename);
+
+		// source map options
+		options.put("generatedFile", generatedFile);
+		options.put("sourceRoot", sourceRoot);
+		options.put("sourceFiles", sourceFiles);
+
+		return options;
+	}
+}
@@ -0,0 +1,81 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of the compilation.
+ */
+public class CompileResult {
+
+	private final String js;
+	private final RawSourceMap rawSourceMap;
+	private String sourceMap = null;	// serialized on demand
+	private final List<CompileError> errors;
+
+	CompileResult(String js, RawSourceMap rawSourceMap) {
+		this.js = js;
+		this.rawSourceMap = rawSourceMap;
+		this.errors = Collections.emptyList();
+	}
+
+	CompileResult(CompileError error) {
+		this.js = null;
+		this.rawSourceMap = null;
+		this.errors = Collections.singletonList(error);
+	}
+
+	public boolean isSuccess() {
+		return errors.isEmpty();
+	}
+
+	/**
+	 * Returns the compiled JavaScript code, or null if the compilation failed.
+	 */
+	public String getJs() {
+		return js;
+	}
+
+	/**
+	 * Returns the source map in the V3 format, or null if it was not requested or the compilation failed.
+	 * The source map is serialized on the first call.
+	 */
+	public synchronized String getSourceMap() {
+		if (sourceMap == null && rawSourceMap != null) {
+			sourceMap = rawSourceMap.toJson();
+		}
+		return sourceMap;
+	}
+
+	/**
+	 * Returns the mappings which are not serialized yet, or null.
+	 */
+	RawSourceMap getRawSourceMap() {
+		return rawSourceMap;
+	}
+
+	public List<CompileError> getErrors() {
+		return errors;
+	}
+}
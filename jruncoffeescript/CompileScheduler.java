@@ -0,0 +1,280 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.io.PrintStream;
+import java.text.MessageFormat;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the compilations of the changed files in watch mode.
+ *
+ * <p>Each path has at most one waiting job and one running job, so the outputs of a file are never
+ * written by two threads. A path submitted again before its job starts replaces the waiting job.
+ * A path submitted while its job is running cancels the running job, which gives up at the next checkpoint,
+ * and the new job waits until the running one ends.</p>
+ *
+ * <p>The waiting jobs are run on the worker threads from the hottest path.
+ * Each change adds the inverse of the number of the files changed together to the heat of the path,
+ * and the heat halves every {@link #HALF_LIFE_MILLIS} milliseconds,
+ * so the file being edited goes ahead of hundreds of files changed by a checkout.
+ * Deletions go ahead of all compilations.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class CompileScheduler {
+
+	/**
+	 * Runner of the jobs.
+	 */
+	interface Worker {
+
+		/**
+		 * Compiles the source file.
+		 *
+		 * @param ticket ticket to be checked between the phases of the compilation
+		 */
+		void compile(String path, Ticket ticket) throws Exception;
+
+		/**
+		 * Deletes the outputs of the deleted source file.
+		 */
+		void delete(String path) throws Exception;
+
+		/**
+		 * Called when all submitted jobs have finished.
+		 */
+		void idle() throws Exception;
+	}
+
+	/**
+	 * Cancellation flag of a job.
+	 */
+	static class Ticket {
+
+		private volatile boolean cancelled = false;
+
+		/**
+		 * Returns whether the job was superseded by a newer change of the file.
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		void cancel() {
+			cancelled = true;
+		}
+	}
+
+	static final long HALF_LIFE_MILLIS = 5 * 60 * 1000;
+
+	private static final double DELETE_PRIORITY = Double.MAX_VALUE;
+
+	private final Worker worker;
+	private final PrintStream log;
+	private final PrintStream err;
+	private final ExecutorService workers;
+	private final ExecutorService idleExecutor;	// idle() is called in order on its own thread
+
+	private final Map<String, PathState> states = new HashMap<String, PathState>();
+	private final PriorityQueue<Job> queue = new PriorityQueue<Job>(16, new Comparator<Job>() {
+		@Override
+		public int compare(Job j1, Job j2) {
+			int c = Double.compare(j2.priority, j1.priority);
+			return (c != 0) ? c : Long.compare(j1.seq, j2.seq);
+		}
+	});
+	private long nextSeq = 0;
+	private int running = 0;
+
+	/**
+	 * @param worker runner of the jobs
+	 * @param threads number of the worker threads
+	 * @param log stream for the verbose messages, or null
+	 * @param err stream for the failures of the jobs
+	 */
+	public CompileScheduler(Worker worker, int threads, PrintStream log, PrintStream err) {
+		this.worker = worker;
+		this.log = log;
+		this.err = err;
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.idleExecutor = Executors.newSingleThreadExecutor();
+	}
+
+	/**
+	 * Schedules the compilations of the files which were changed together.
+	 */
+	public synchronized void submitChanged(List<String> paths) {
+		long now = System.nanoTime();
+		double weight = 1.0 / paths.size();
+		for (String path : paths) {
+			PathState state = getState(path);
+			// lastChanged is meaningless before the first change, as nanoTime() may be negative
+			double heat = (state.heat > 0) ? state.heat * decay(now - state.lastChanged) : 0;
+			state.heat = heat + weight;
+			state.lastChanged = now;
+			schedule(state, false, state.heat);
+		}
+		verbose("scheduled {0} files: {1} waiting, {2} running", paths.size(), queue.size(), running);
+	}
+
+	/**
+	 * Schedules the deletions of the outputs of the files.
+	 */
+	public synchronized void submitDeleted(List<String> paths) {
+		for (String path : paths) {
+			schedule(getState(path), true, DELETE_PRIORITY);
+		}
+	}
+
+	/**
+	 * Stops the worker threads, without waiting for the running jobs.
+	 */
+	public void shutdown() {
+		workers.shutdownNow();
+		idleExecutor.shutdown();
+	}
+
+	private PathState getState(String path) {
+		PathState state = states.get(path);
+		if (state == null) {
+			state = new PathState(path);
+			states.put(path, state);
+		}
+		return state;
+	}
+
+	private void schedule(PathState state, boolean delete, double priority) {
+		if (state.waiting != null) {
+			queue.remove(state.waiting);
+		}
+		state.waiting = new Job(state, delete, priority, nextSeq++);
+		if (state.running != null) {
+			// queued when the running job ends
+			state.running.ticket.cancel();
+		} else {
+			enqueue(state.waiting);
+		}
+	}
+
+	private void enqueue(Job job) {
+		queue.add(job);
+		// the job run by the thread is chosen when the thread is available
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				runNext();
+			}
+		});
+	}
+
+	private void runNext() {
+		Job job;
+		synchronized (this) {
+			job = queue.poll();
+			if (job == null) {
+				return;	// replaced, or taken by another thread
+			}
+			job.state.waiting = null;
+			job.state.running = job;
+			++running;
+		}
+
+		try {
+			if (job.delete) {
+				worker.delete(job.state.path);
+			} else {
+				worker.compile(job.state.path, job.ticket);
+			}
+		} catch (Exception e) {
+			e.printStackTrace(err);
+		}
+
+		synchronized (this) {
+			job.state.running = null;
+			--running;
+			if (job.state.waiting != null) {
+				enqueue(job.state.waiting);
+			} else if (running == 0 && queue.isEmpty()) {
+				idleExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							worker.idle();
+						} catch (Exception e) {
+							e.printStackTrace(err);
+						}
+					}
+				});
+			}
+		}
+	}
+
+	private static double decay(long elapsedNanos) {
+		return Math.pow(0.5, (double) TimeUnit.NANOSECONDS.toMillis(elapsedNanos) / HALF_LIFE_MILLIS);
+	}
+
+	private void verbose(String format, Object... params) {
+		if (log != null) {
+			log.println(MessageFormat.format(format, params));
+		}
+	}
+
+	/**
+	 * Jobs and the edit history of a path.
+	 */
+	private static class PathState {
+
+		final String path;
+		double heat = 0;
+		long lastChanged = 0;
+		Job waiting;
+		Job running;
+
+		PathState(String path) {
+			this.path = path;
+		}
+	}
+
+	private static class Job {
+
+		final PathState state;
+		final boolean delete;
+		final double priority;
+		final long seq;
+		final Ticket ticket = new Ticket();
+
+		Job(PathState state, boolean delete, double priority, long seq) {
+			this.state = state;
+			this.delete = delete;
+			this.priority = priority;
+			this.seq = seq;
+		}
+	}
+}
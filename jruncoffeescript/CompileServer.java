@@ -0,0 +1,295 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compile server which keeps the initialized script engines resident.
+ *
+ * <p>The server listens on the loopback interface only, and writes a random token to a file
+ * which only the user who started the server can read.
+ * A request consists of the token, the working directory of the client and the command line options,
+ * and the response consists of the output frames followed by the exit status.</p>
+ */
+class CompileServer {
+
+	private static final String PROTOCOL = "jruncoffeescript/2";
+	private static final int TOKEN_BYTES = 32;
+	private static final int REQUEST_TIMEOUT = 10000;	// milliseconds to receive a request
+
+	private static final byte FRAME_OUT = 'o';
+	private static final byte FRAME_ERR = 'e';
+	private static final byte FRAME_EXIT = 'x';
+
+	private final Coffee coffee;
+	private final int port;
+	private final PrintStream out;
+	private final PrintStream err;
+	private byte[] token;
+
+	/**
+	 * @param coffee instance whose script engines are shared by the requests
+	 * @param port port number on the loopback interface
+	 * @param out stream for the messages
+	 * @param err stream for the failures of the requests
+	 */
+	public CompileServer(Coffee coffee, int port, PrintStream out, PrintStream err) {
+		this.coffee = coffee;
+		this.port = port;
+		this.out = out;
+		this.err = err;
+	}
+
+	public void serve() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		File tokenFile = getTokenFile(serverSocket.getLocalPort());
+		token = writeToken(tokenFile);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			out.println(MessageFormat.format("compile server is listening on {0}", serverSocket.getLocalSocketAddress()));
+			for (;;) {
+				final Socket socket = serverSocket.accept();
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							handle(socket);
+						} catch (IOException e) {
+							e.printStackTrace(err);
+						} finally {
+							try {
+								socket.close();
+							} catch (IOException e) {
+								// ignore
+							}
+						}
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+			serverSocket.close();
+			tokenFile.delete();
+		}
+	}
+
+	/**
+	 * Returns the file which holds the token of the server on the port.
+	 */
+	static File getTokenFile(int port) {
+		return new File(System.getProperty("user.home"), ".jruncoffeescript-server-" + port);
+	}
+
+	/**
+	 * Writes a new random token to the file which only the current user can read.
+	 */
+	private static byte[] writeToken(File file) throws IOException {
+		byte[] bytes = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(bytes);
+		byte[] token = BuildCache.toHex(bytes).getBytes("US-ASCII");
+
+		// created anew, so that the permissions are never those of a file left by someone else
+		Path path = file.toPath();
+		Files.deleteIfExists(path);
+		try {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system, where the home directory is private to the user
+			Files.createFile(path);
+		}
+		Files.write(path, token);
+		file.deleteOnExit();
+		return token;
+	}
+
+	private void handle(Socket socket) throws IOException {
+		// a client which doesn't send the request must not hold the thread
+		socket.setSoTimeout(REQUEST_TIMEOUT);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+		String protocol = in.readUTF();
+		if (!PROTOCOL.equals(protocol)) {
+			throw new IOException(MessageFormat.format("unknown protocol: {0}", protocol));
+		}
+		if (!MessageDigest.isEqual(token, in.readUTF().getBytes("US-ASCII"))) {
+			throw new IOException(MessageFormat.format("invalid token from {0}", socket.getRemoteSocketAddress()));
+		}
+		String workingDir = in.readUTF();
+		int argc = in.readInt();
+		String[] args = new String[argc];
+		for (int i = 0; i < argc; ++i) {
+			args[i] = in.readUTF();
+		}
+
+		PrintStream clientOut = new PrintStream(new FrameOutputStream(dataOut, FRAME_OUT), true);
+		PrintStream clientErr = new PrintStream(new FrameOutputStream(dataOut, FRAME_ERR), true);
+		int status;
+		try {
+			Coffee request = new Coffee(clientOut, clientErr);
+			request.parseOptions(args);
+			request.checkServerRequest();
+			request.setBaseDirectory(new File(workingDir));
+			request.shareEngines(coffee);
+			status = request.run();
+		} catch (IllegalArgumentException e) {
+			clientErr.println(e.getMessage());
+			status = 1;
+		} catch (Exception e) {
+			e.printStackTrace(clientErr);
+			status = 1;
+		}
+		clientOut.flush();
+		clientErr.flush();
+
+		synchronized (dataOut) {
+			dataOut.writeByte(FRAME_EXIT);
+			dataOut.writeInt(status);
+			dataOut.flush();
+		}
+	}
+
+	/**
+	 * Output stream which sends each written chunk as a frame.
+	 */
+	private static class FrameOutputStream extends OutputStream {
+
+		private final DataOutputStream dataOut;
+		private final byte type;
+
+		public FrameOutputStream(DataOutputStream dataOut, byte type) {
+			this.dataOut = dataOut;
+			this.type = type;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			synchronized (dataOut) {
+				dataOut.writeByte(type);
+				dataOut.writeInt(len);
+				dataOut.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (dataOut) {
+				dataOut.flush();
+			}
+		}
+	}
+
+	/**
+	 * Thin client which sends the options to the compile server.
+	 */
+	static class Client {
+
+		private final int port;
+		private final PrintStream out;
+		private final PrintStream err;
+
+		public Client(int port, PrintStream out, PrintStream err) {
+			this.port = port;
+			this.out = out;
+			this.err = err;
+		}
+
+		/**
+		 * Sends a request to the server and relays the output.
+		 *
+		 * @return exit status reported by the server
+		 */
+		public int run(List<String> args) throws IOException {
+			File tokenFile = getTokenFile(port);
+			if (!tokenFile.isFile()) {
+				err.println(MessageFormat.format("no compile server of the current user on port {0}: {1} not found", port, tokenFile));
+				return 1;
+			}
+			String token = new String(Files.readAllBytes(tokenFile.toPath()), "US-ASCII");
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			try {
+				DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				dataOut.writeUTF(PROTOCOL);
+				dataOut.writeUTF(token);
+				dataOut.writeUTF(new File("").getAbsolutePath());
+				dataOut.writeInt(args.size());
+				for (String arg : args) {
+					dataOut.writeUTF(arg);
+				}
+				dataOut.flush();
+
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				byte[] buffer = new byte[8192];
+				for (;;) {
+					byte type;
+					try {
+						type = in.readByte();
+					} catch (EOFException e) {
+						err.println("compile server closed the connection");
+						return 1;
+					}
+					if (type == FRAME_EXIT) {
+						return in.readInt();
+					}
+					int len = in.readInt();
+					if (buffer.length < len) {
+						buffer = new byte[len];
+					}
+					in.readFully(buffer, 0, len);
+					PrintStream target = (type == FRAME_ERR) ? err : out;
+					target.write(buffer, 0, len);
+					target.flush();
+				}
+			} finally {
+				socket.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,268 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP server which compiles the source files when the JavaScript files are requested.
+ *
+ * <p>A request for <code>/path/to/script.js</code> is answered with the compiled code of
+ * <code>script.coffee</code>, <code>script.litcoffee</code> or <code>script.coffee.md</code>
+ * in <code>path/to</code> under one of the source directories, and <code>/path/to/script.js.map</code>
+ * with its source map. Other files in the source directories are served as they are.</p>
+ *
+ * <p>The source file is read on every request, so the response is never stale.
+ * The compiled results are kept in an LRU cache keyed by the hash of the source code and the options,
+ * which is also used as the ETag, so unchanged files are neither compiled again nor sent again.</p>
+ */
+class DevServer {
+
+	private static final int CACHE_ENTRIES = 512;
+
+	private static final String[] SOURCE_EXTENSIONS = { ".coffee", ".litcoffee", ".coffee.md" };
+
+	private final Coffee coffee;
+	private final int port;
+	private final List<Path> roots = new ArrayList<Path>();
+	private final SourceFilter filter;
+	private final PrintStream out;
+	private final PrintStream err;
+	private final PrintStream log;
+
+	// content key -> compiled result
+	private final Map<String, CompileResult> cache = Collections.synchronizedMap(
+			new LinkedHashMap<String, CompileResult>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CompileResult> eldest) {
+					return size() > CACHE_ENTRIES;
+				}
+			});
+
+	/**
+	 * @param coffee instance which compiles the files with its options
+	 * @param port port number on the loopback interface
+	 * @param dirs source directories
+	 * @param out stream for the messages
+	 * @param err stream for the compile errors and the failures of the requests
+	 * @param log stream for the verbose messages, or null
+	 */
+	public DevServer(Coffee coffee, int port, List<String> dirs, PrintStream out, PrintStream err, PrintStream log) {
+		this.coffee = coffee;
+		this.port = port;
+		for (String dir : dirs) {
+			roots.add(new File(dir).getAbsoluteFile().toPath().normalize());
+		}
+		this.filter = coffee.getSourceFilter();
+		this.out = out;
+		this.err = err;
+		this.log = log;
+	}
+
+	public void serve() throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 50);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					DevServer.this.handle(exchange);
+				} catch (Exception e) {
+					e.printStackTrace(err);
+					sendText(exchange, 500, e.toString());
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		out.println(MessageFormat.format("dev server is listening on http://{0}:{1,number,#}/", server.getAddress().getHostString(), server.getAddress().getPort()));
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			server.stop(0);
+			executor.shutdown();
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws Exception {
+		String method = exchange.getRequestMethod();
+		if (!"GET".equals(method) && !"HEAD".equals(method)) {
+			sendText(exchange, 405, "Method Not Allowed");
+			return;
+		}
+
+		String path = exchange.getRequestURI().getPath();
+		boolean isMap = path.endsWith(".js.map");
+		if (isMap || path.endsWith(".js")) {
+			String base = path.substring(0, path.length() - (isMap ? ".js.map" : ".js").length());
+			File sourceFile = findSource(base);
+			if (sourceFile != null) {
+				sendCompiled(exchange, sourceFile, isMap);
+				return;
+			}
+		}
+
+		Path file = resolve(path);
+		if (file == null || !Files.isRegularFile(file)) {
+			sendText(exchange, 404, "Not Found");
+			return;
+		}
+		String contentType = URLConnection.guessContentTypeFromName(file.getFileName().toString());
+		send(exchange, 200, (contentType != null) ? contentType : "application/octet-stream", null, Files.readAllBytes(file));
+	}
+
+	private void sendCompiled(HttpExchange exchange, File sourceFile, boolean isMap) throws Exception {
+		if (isMap && !coffee.isSourceMapEnabled()) {
+			sendText(exchange, 404, "Not Found");
+			return;
+		}
+
+		String name = sourceFile.getName();
+		for (String extension : SOURCE_EXTENSIONS) {
+			if (name.endsWith(extension)) {
+				name = name.substring(0, name.length() - extension.length());
+				break;
+			}
+		}
+		File jsFile = new File(sourceFile.getParentFile(), name + ".js");
+		File mapFile = new File(sourceFile.getParentFile(), name + ".js.map");
+
+		String source = FileUtil.readText(sourceFile);
+		String key = coffee.computeOutputKey(sourceFile, source, jsFile, mapFile);
+		String etag = "\"" + key + (isMap ? "-map" : "") + "\"";
+		if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			send(exchange, 304, null, etag, null);
+			return;
+		}
+
+		CompileResult result = cache.get(key);
+		if (result == null) {
+			verbose("compile: {0}", sourceFile);
+			result = coffee.compileSource(sourceFile, source, jsFile, mapFile);
+			if (!result.isSuccess()) {
+				StringBuilder message = new StringBuilder();
+				for (CompileError error : result.getErrors()) {
+					message.append(error.toString()).append('\n');
+				}
+				err.print(message);
+				sendText(exchange, 500, message.toString());
+				return;
+			}
+			cache.put(key, result);
+		}
+
+		if (isMap) {
+			send(exchange, 200, "application/json; charset=UTF-8", etag, result.getSourceMap().getBytes("UTF-8"));
+		} else {
+			send(exchange, 200, "application/javascript; charset=UTF-8", etag, result.getJs().getBytes("UTF-8"));
+		}
+	}
+
+	/**
+	 * Returns the source file for the path without the extension, or null.
+	 */
+	private File findSource(String base) {
+		for (String extension : SOURCE_EXTENSIONS) {
+			Path file = resolve(base + extension);
+			if (file != null && Files.isRegularFile(file)) {
+				return file.toFile();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the file for the path in the first source directory which has it and accepts it, or null.
+	 */
+	private Path resolve(String urlPath) {
+		String relative = urlPath.startsWith("/") ? urlPath.substring(1) : urlPath;
+		for (Path root : roots) {
+			Path file = root.resolve(relative).normalize();
+			if (!file.startsWith(root) || file.equals(root) || !Files.exists(file)) {
+				continue;	// outside of the directory
+			}
+			if (isSourceFile(file) && !filter.acceptFile(root.relativize(file))) {
+				continue;
+			}
+			return file;
+		}
+		return null;
+	}
+
+	private static boolean isSourceFile(Path file) {
+		return Coffee.isSourceFileName(file.getFileName().toString());
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		send(exchange, status, "text/plain; charset=UTF-8", null, text.getBytes("UTF-8"));
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, String etag, byte[] body) throws IOException {
+		if (contentType != null) {
+			exchange.getResponseHeaders().set("Content-Type", contentType);
+		}
+		if (etag != null) {
+			exchange.getResponseHeaders().set("ETag", etag);
+		}
+		// the browser revalidates every time, so a changed source is always compiled
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		boolean hasBody = body != null && !"HEAD".equals(exchange.getRequestMethod());
+		exchange.sendResponseHeaders(status, hasBody ? body.length : -1);
+		if (hasBody) {
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+	}
+
+	private void verbose(String format, Object... params) {
+		if (log != null) {
+			log.println(MessageFormat.format(format, params));
+		}
+	}
+}
@@ -0,0 +1,68 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Artifact store in a local directory.
+ *
+ * <p>The directory can be shared by multiple processes, or by machines over a network file system,
+ * because every artifact is written atomically.</p>
+ */
+class DirectoryStore implements ArtifactStore {
+
+	private final File dir;
+
+	public DirectoryStore(File dir) {
+		this.dir = dir;
+	}
+
+	@Override
+	public boolean fetch(String name, File file) throws IOException {
+		File cachedFile = new File(dir, name);
+		if (!cachedFile.isFile()) {
+			return false;
+		}
+		if (!FileUtil.contentEquals(file, cachedFile)) {
+			FileUtil.copy(cachedFile, file);
+		}
+		return true;
+	}
+
+	@Override
+	public void put(String name, File file) throws IOException {
+		File cachedFile = new File(dir, name);
+		File parent = cachedFile.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("cannot create directory: " + parent);
+		}
+		// copied atomically, so that other processes never see a partial entry.
+		FileUtil.copy(file, cachedFile);
+	}
+
+	@Override
+	public String toString() {
+		return dir.getPath();
+	}
+}
@@ -0,0 +1,537 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+
+/**
+ * Pool of script contexts in which the CoffeeScript compiler is loaded.
+ *
+ * <p>The compiler script is compiled once per engine with {@link Compilable},
+ * and the compiled script is evaluated in each context.
+ * If the engine can run scripts in multiple contexts concurrently (Nashorn, Rhino),
+ * all contexts share one engine and the compiled compiler.
+ * Otherwise each context has its own engine.</p>
+ *
+ * <p>A context can be recycled after a number of compilations, or when the heap usage after GC
+ * exceeds a threshold. The retired context is dropped, and a new context is created on a background thread
+ * and added to the pool. Recycled contexts are created on a new engine, which is shared by up to
+ * the size of the pool if possible, so the global state and the caches of the old engine are released
+ * when all of its contexts are retired.</p>
+ */
+class EnginePool {
+
+	// compiler scripts read from the class path (resource path -> script)
+	private static final Map<String, String> compilerScripts = new ConcurrentHashMap<String, String>();
+
+	// header comment of the compiler script
+	private static final Pattern VERSION_PATTERN = Pattern.compile("\\A\\s*/\\*[^/]*CoffeeScript Compiler v(\\S+)");
+
+	private static final String ADAPTER_NAME = "jrunCoffeeScript";
+
+	// Adapter which is called through Invocable.
+	// Options are passed as arguments, because some option values have to be JavaScript objects
+	// which have the "toJSON" method, and we can't create them in Java code without engine-specific classes.
+	// With the source map, the fragments are joined in the same way as CoffeeScript.compile,
+	// but only the positions are collected, and the source map is serialized in Java (RawSourceMap).
+	// On an error, CoffeeScript.compile is called again to get the error with the pretty message.
+	private static final String ADAPTER_SCRIPT =
+			"var " + ADAPTER_NAME + " = {\n"
+			+ "  compile: function(source, bare, header, literate, sourceMap, filename, generatedFile, sourceRoot, sourceFiles) {\n"
+			+ "    var files = [];\n"
+			+ "    for (var i = 0; i < sourceFiles.length; i++) files.push(String(sourceFiles[i]));\n"
+			+ "    var options = {\n"
+			+ "      bare: bare, header: header, literate: literate, sourceMap: false,\n"
+			+ "      filename: (filename != null) ? String(filename) : null,\n"
+			+ "      generatedFile: (generatedFile != null) ? String(generatedFile) : null,\n"
+			+ "      sourceRoot: (sourceRoot != null) ? String(sourceRoot) : null,\n"
+			+ "      sourceFiles: files\n"
+			+ "    };\n"
+			+ "    try {\n"
+			+ "      return sourceMap ? this.compileWithMappings(String(source), options) : { js: CoffeeScript.compile(String(source), options) };\n"
+			+ "    } catch (e) {\n"
+			+ "      if (sourceMap) {\n"
+			+ "        try { CoffeeScript.compile(String(source), options); } catch (pretty) { e = pretty; }\n"
+			+ "      }\n"
+			+ "      return {\n"
+			+ "        error: e.toString(), message: e.message,\n"
+			+ "        line: e.location ? e.location.first_line + 1 : 0,\n"
+			+ "        column: e.location ? e.location.first_column + 1 : 0\n"
+			+ "      };\n"
+			+ "    }\n"
+			+ "  },\n"
+			+ "  compileWithMappings: function(source, options) {\n"
+			+ "    var tokens = CoffeeScript.tokens(source, options), vars = [], i;\n"
+			+ "    for (i = 0; i < tokens.length; i++) if (tokens[i].variable) vars.push(tokens[i][1]);\n"
+			+ "    options.referencedVars = vars;\n"
+			+ "    var fragments = CoffeeScript.nodes(tokens).compileToFragments(options);\n"
+			+ "    var line = options.header ? 1 : 0, column = 0, js = '', mappings = [];\n"
+			+ "    for (i = 0; i < fragments.length; i++) {\n"
+			+ "      var fragment = fragments[i], code = fragment.code, location = fragment.locationData;\n"
+			+ "      if (location) mappings.push(line, column, location.first_line, location.first_column);\n"
+			+ "      var newline = code.lastIndexOf('\\n');\n"
+			+ "      if (newline >= 0) {\n"
+			+ "        line += code.split('\\n').length - 1;\n"
+			+ "        column = code.length - (newline + 1);\n"
+			+ "      } else {\n"
+			+ "        column += code.length;\n"
+			+ "      }\n"
+			+ "      js += code;\n"
+			+ "    }\n"
+			+ "    if (options.header) js = '// Generated by CoffeeScript ' + CoffeeScript.VERSION + '\\n' + js;\n"
+			+ "    return { js: js, mappings: mappings.join(',') };\n"
+			+ "  }\n"
+			+ "};\n";
+
+	private final int size;
+	private final EngineProvider engineProvider;
+	private final PrintStream log;
+	private final PrintStream err;
+
+	private final BlockingQueue<CompilerContext> idleContexts = new LinkedBlockingQueue<CompilerContext>();
+	private boolean initialized = false;
+
+	private int maxCompiles = 0;	// compilations per context before recycling, 0 for unlimited
+	private int heapThreshold = 0;	// percentage of the heap usage after GC to recycle a context, 0 for none
+	private long lastCollectionCount = -1;	// GC count when a context was recycled for the heap usage
+	private ExecutorService recycler = null;
+	private Generation generation = null;	// engine of the recycled contexts
+
+	/**
+	 * @param size number of contexts
+	 * @param engineProvider provider of the script engines
+	 * @param log stream for the verbose messages, or null
+	 * @param err stream for the warnings
+	 */
+	public EnginePool(int size, EngineProvider engineProvider, PrintStream log, PrintStream err) {
+		this.size = size;
+		this.engineProvider = engineProvider;
+		this.log = log;
+		this.err = err;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sets the number of compilations after which a context is recycled.
+	 *
+	 * @param maxCompiles number of compilations, or 0 not to recycle the contexts
+	 */
+	public synchronized void setMaxCompiles(int maxCompiles) {
+		this.maxCompiles = maxCompiles;
+	}
+
+	/**
+	 * Sets the heap usage at which a context is recycled.
+	 * The usage is measured after GC, and at most one context is recycled per GC.
+	 *
+	 * @param percent percentage of the maximum heap size, or 0 not to check the heap usage
+	 */
+	public synchronized void setHeapThreshold(int percent) {
+		this.heapThreshold = percent;
+	}
+
+	public synchronized boolean isInitialized() {
+		return initialized;
+	}
+
+	public synchronized void init() throws ScriptException, IOException {
+		if (initialized) {
+			return;
+		}
+
+		verbose("initialize script engine");
+		long startTime = System.nanoTime();
+
+		ScriptEngine engine = engineProvider.newScriptEngine();
+		verbose("script engine: {0} {1}", engine.getFactory().getEngineName(), engine.getFactory().getEngineVersion());
+		CompiledScript compiler = compileCompiler(engine);
+		CompiledScript adapter = compileAdapter(engine);
+		idleContexts.add(newCompilerContext(engine, compiler, adapter, engine.getContext()));
+
+		if (size > 1) {
+			if (engineProvider.isSharable(engine)) {
+				for (int i = 1; i < size; ++i) {
+					idleContexts.add(newCompilerContext(engine, compiler, adapter, newScriptContext(engine)));
+				}
+			} else {
+				addIndependentEngines(size - 1);
+			}
+		}
+
+		verbose("script engine is ready: {0} context(s) in {1,number,#} ms", size, elapsedMillis(startTime));
+		initialized = true;
+	}
+
+	public CompilerContext acquire() throws InterruptedIOException {
+		try {
+			return idleContexts.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for a script engine");
+		}
+	}
+
+	public void release(CompilerContext context) {
+		if (needsRecycling(context)) {
+			recycle(context);
+		} else {
+			idleContexts.add(context);
+		}
+	}
+
+	private synchronized boolean needsRecycling(CompilerContext context) {
+		if (maxCompiles > 0 && context.compiles >= maxCompiles) {
+			verbose("recycle script context after {0} compilation(s)", context.compiles);
+			return true;
+		}
+		if (heapThreshold > 0 && context.compiles > 0) {
+			long collectionCount = getCollectionCount();
+			if (collectionCount != lastCollectionCount && getHeapUsageAfterGC() >= heapThreshold) {
+				lastCollectionCount = collectionCount;
+				verbose("recycle script context: heap usage after GC exceeds {0}%", heapThreshold);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized void recycle(final CompilerContext context) {
+		if (recycler == null) {
+			recycler = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "jruncoffeescript-recycler");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		recycler.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					idleContexts.add(newRecycledContext());
+				} catch (Exception e) {
+					err.println(MessageFormat.format("WARNING: cannot recycle script context: {0}", e));
+					context.compiles = 0;
+					idleContexts.add(context);
+				}
+			}
+		});
+	}
+
+	private CompilerContext newRecycledContext() throws ScriptException, IOException {
+		long startTime = System.nanoTime();
+		Generation current;
+		int index;	// index of the new context in the generation
+		synchronized (this) {
+			current = generation;
+			index = (current != null && current.sharable && current.contexts < size) ? current.contexts++ : -1;
+		}
+		if (index < 0) {
+			// creating an engine takes seconds; do not hold the lock which release() needs
+			ScriptEngine engine = engineProvider.newScriptEngine();
+			current = new Generation(engine, compileCompiler(engine), compileAdapter(engine), engineProvider.isSharable(engine));
+			current.contexts = 1;
+			index = 0;
+			synchronized (this) {
+				generation = current;
+			}
+		}
+		ScriptEngine engine = current.engine;
+		ScriptContext scriptContext = (index == 0) ? engine.getContext() : newScriptContext(engine);
+		CompilerContext context = newCompilerContext(engine, current.compiler, current.adapter, scriptContext);
+		verbose("recycled script context in {0,number,#} ms", elapsedMillis(startTime));
+		return context;
+	}
+
+	private static long getCollectionCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(gc.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the highest usage of the heap pools after the last GC, in percent.
+	 */
+	private static int getHeapUsageAfterGC() {
+		int percent = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported()) {
+				continue;
+			}
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (usage != null && usage.getMax() > 0) {
+				percent = Math.max(percent, (int) (usage.getUsed() * 100 / usage.getMax()));
+			}
+		}
+		return percent;
+	}
+
+	private void addIndependentEngines(int count) throws ScriptException, IOException {
+		// engines are independent of each other, so we can warm them up concurrently.
+		ExecutorService executor = Executors.newFixedThreadPool(count);
+		try {
+			List<Future<CompilerContext>> futures = new ArrayList<Future<CompilerContext>>();
+			for (int i = 0; i < count; ++i) {
+				futures.add(executor.submit(new Callable<CompilerContext>() {
+					@Override
+					public CompilerContext call() throws Exception {
+						ScriptEngine engine = engineProvider.newScriptEngine();
+						return newCompilerContext(engine, compileCompiler(engine), compileAdapter(engine), engine.getContext());
+					}
+				}));
+			}
+			for (Future<CompilerContext> future : futures) {
+				idleContexts.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while initializing script engines");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ScriptException) {
+				throw (ScriptException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private ScriptContext newScriptContext(ScriptEngine engine) {
+		ScriptContext context = new SimpleScriptContext();
+		context.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		Bindings globalBindings = engine.getBindings(ScriptContext.GLOBAL_SCOPE);
+		if (globalBindings != null) {
+			context.setBindings(globalBindings, ScriptContext.GLOBAL_SCOPE);
+		}
+		return context;
+	}
+
+	private CompiledScript compileCompiler(ScriptEngine engine) throws ScriptException, UnsupportedEncodingException, IOException {
+		String script = readCoffeeScriptCompiler(engine);
+		if (!(engine instanceof Compilable)) {
+			return null;
+		}
+		long startTime = System.nanoTime();
+		engine.getContext().setAttribute(ScriptEngine.FILENAME, "coffee-script.js", ScriptContext.ENGINE_SCOPE);
+		CompiledScript compiled = ((Compilable) engine).compile(script);
+		verbose("compiled the compiler script in {0,number,#} ms", elapsedMillis(startTime));
+		return compiled;
+	}
+
+	private CompiledScript compileAdapter(ScriptEngine engine) throws ScriptException {
+		if (!(engine instanceof Compilable)) {
+			return null;
+		}
+		return ((Compilable) engine).compile(ADAPTER_SCRIPT);
+	}
+
+	private CompilerContext newCompilerContext(ScriptEngine engine, CompiledScript compiler, CompiledScript adapter, ScriptContext context) throws ScriptException, UnsupportedEncodingException, IOException {
+		if (!(engine instanceof Invocable)) {
+			throw new IllegalStateException(MessageFormat.format("{0} doesn''t support javax.script.Invocable", engine.getFactory().getEngineName()));
+		}
+
+		long startTime = System.nanoTime();
+		if (compiler != null) {
+			compiler.eval(context);
+		} else {
+			engine.eval(readCoffeeScriptCompiler(engine), context);
+		}
+		if (adapter != null) {
+			adapter.eval(context);
+		} else {
+			engine.eval(ADAPTER_SCRIPT, context);
+		}
+		verbose("evaluated the compiler script in {0,number,#} ms", elapsedMillis(startTime));
+		return new CompilerContext(engine, context, context.getAttribute(ADAPTER_NAME, ScriptContext.ENGINE_SCOPE));
+	}
+
+	private String readCoffeeScriptCompiler(ScriptEngine engine) throws UnsupportedEncodingException, IOException {
+		String scriptPath = "/coffee-script.js";
+		if (engine.getFactory().getEngineName().contains("Rhino")) {
+			// Rhino engine which is provided by JRE7 doesn't support "Using reserved word as a property name" feature in ECMAScript5.
+			// It causes error at the property name "double".
+			// We use a modified source file to avoid this issue.
+			scriptPath = "/coffee-script-for-rhino.js";
+			err.println("WARNING: use coffee-script-for-rhino.js");
+		}
+
+		verbose("compiler script: {0}", scriptPath);
+		return readScript(scriptPath);
+	}
+
+	private static String readScript(String scriptPath) throws IOException {
+		String script = compilerScripts.get(scriptPath);
+		if (script != null) {
+			return script;
+		}
+
+		InputStream s = EnginePool.class.getResourceAsStream(scriptPath);
+		if (s == null) {
+			throw new FileNotFoundException(MessageFormat.format("{0} is not found in CLASSPATH", scriptPath.substring(1)));
+		}
+		try {
+			script = FileUtil.readText(s);
+		} finally {
+			s.close();
+		}
+		compilerScripts.put(scriptPath, script);
+		return script;
+	}
+
+	/**
+	 * Returns the version of the CoffeeScript compiler in the class path, without initializing a script engine.
+	 * The version is read from the header comment of the compiler script.
+	 */
+	public static String readCompilerVersion() throws IOException {
+		Matcher m = VERSION_PATTERN.matcher(readScript("/coffee-script.js"));
+		return m.find() ? m.group(1) : "unknown";
+	}
+
+	private long elapsedMillis(long startTime) {
+		return (System.nanoTime() - startTime) / 1000000;
+	}
+
+	private void verbose(String format, Object... params) {
+		if (log != null) {
+			log.println(MessageFormat.format(format, params));
+		}
+	}
+
+	/**
+	 * Engine and its compiled scripts, on which the recycled contexts are created.
+	 */
+	private static class Generation {
+
+		final ScriptEngine engine;
+		final CompiledScript compiler;
+		final CompiledScript adapter;
+		final boolean sharable;
+		int contexts = 0;	// guarded by the pool
+
+		Generation(ScriptEngine engine, CompiledScript compiler, CompiledScript adapter, boolean sharable) {
+			this.engine = engine;
+			this.compiler = compiler;
+			this.adapter = adapter;
+			this.sharable = sharable;
+		}
+	}
+
+	/**
+	 * Script context in which the CoffeeScript compiler is loaded.
+	 * A context is used by one thread at a time.
+	 */
+	static class CompilerContext {
+
+		private final ScriptEngine engine;
+		private final ScriptContext context;
+		private final Object adapter;
+		private int compiles = 0;
+
+		public CompilerContext(ScriptEngine engine, ScriptContext context, Object adapter) {
+			this.engine = engine;
+			this.context = context;
+			this.adapter = adapter;
+		}
+
+		public ScriptEngine getEngine() {
+			return engine;
+		}
+
+		public Object eval(String script) throws ScriptException {
+			return engine.eval(script, context);
+		}
+
+		/**
+		 * Calls <code>CoffeeScript.compile</code> through the adapter object in this context.
+		 *
+		 * @return object which has "js" and "mappings" (with the source map), or "error", "message", "line" and "column"
+		 */
+		public Map<?, ?> compile(String source, CompileOptions options) throws ScriptException {
+			List<String> sourceFiles = options.getSourceFiles();
+			++compiles;
+			Object result;
+			try {
+				result = ((Invocable) engine).invokeMethod(adapter, "compile",
+						source,
+						options.isBare(),
+						options.isHeader(),
+						options.isLiterate(),
+						options.isSourceMap(),
+						options.getFilename(),
+						options.getGeneratedFile(),
+						options.getSourceRoot(),
+						sourceFiles.toArray(new String[sourceFiles.size()]));
+			} catch (NoSuchMethodException e) {
+				throw new IllegalStateException(e);
+			}
+			if (!(result instanceof Map<?, ?>)) {
+				throw new IllegalStateException(MessageFormat.format("Unexpected result: {0}", (result != null) ? result.getClass() : null));
+			}
+			return (Map<?, ?>) result;
+		}
+	}
+}
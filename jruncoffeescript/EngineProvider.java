@@ -0,0 +1,282 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.text.MessageFormat;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+
+/**
+ * Provider of the script engines which run the CoffeeScript compiler.
+ *
+ * <p>The third-party engines are accessed through reflection,
+ * so they are needed only in the class path at runtime.</p>
+ */
+public abstract class EngineProvider {
+
+	public static final String DEFAULT = "default";
+	public static final String NASHORN = "nashorn";
+	public static final String GRAALJS = "graaljs";
+	public static final String RHINO = "rhino";
+
+	/**
+	 * Returns the provider of the specified name.
+	 *
+	 * @param name one of {@link #DEFAULT}, {@link #NASHORN}, {@link #GRAALJS} and {@link #RHINO}
+	 * @param codeCacheDir directory for the persistent code cache of Nashorn, or null
+	 */
+	public static EngineProvider forName(String name, File codeCacheDir) {
+		if (DEFAULT.equals(name)) {
+			return new DefaultProvider(codeCacheDir);
+		}
+		if (NASHORN.equals(name)) {
+			return new NashornProvider(codeCacheDir);
+		}
+		if (GRAALJS.equals(name)) {
+			return new GraalJSProvider();
+		}
+		if (RHINO.equals(name)) {
+			return new RhinoProvider();
+		}
+		throw new IllegalArgumentException(MessageFormat.format("Unknown script engine: {0}", name));
+	}
+
+	public abstract String getName();
+
+	/**
+	 * Creates a new script engine.
+	 *
+	 * @throws IllegalStateException if the engine is not available
+	 */
+	public abstract ScriptEngine newScriptEngine();
+
+	/**
+	 * Returns the name and the version of the engine, without creating it.
+	 */
+	public String describeEngine() {
+		ScriptEngineFactory factory = findEngineFactory(new ScriptEngineManager());
+		if (factory == null) {
+			return getName();
+		}
+		return factory.getEngineName() + " " + factory.getEngineVersion();
+	}
+
+	/**
+	 * Returns the factory of the engine created by {@link #newScriptEngine()}, or null if not available.
+	 */
+	protected ScriptEngineFactory findEngineFactory(ScriptEngineManager manager) {
+		return findFactory(manager, getName());
+	}
+
+	/**
+	 * Returns whether scripts can run concurrently in multiple contexts of the engine.
+	 */
+	public boolean isSharable(ScriptEngine engine) {
+		return engine.getFactory().getParameter("THREADING") != null;
+	}
+
+	private static ScriptEngineFactory findFactory(ScriptEngineManager manager, String name) {
+		for (ScriptEngineFactory factory : manager.getEngineFactories()) {
+			if (factory.getNames().contains(name)) {
+				return factory;
+			}
+		}
+		return null;
+	}
+
+	private static IllegalStateException notAvailable(String name, String hint) {
+		return new IllegalStateException(MessageFormat.format("Script engine is not available: {0} ({1})", name, hint));
+	}
+
+	/**
+	 * Engine found by the name "JavaScript".
+	 */
+	private static class DefaultProvider extends EngineProvider {
+
+		private final File codeCacheDir;
+
+		public DefaultProvider(File codeCacheDir) {
+			this.codeCacheDir = codeCacheDir;
+		}
+
+		@Override
+		public String getName() {
+			return DEFAULT;
+		}
+
+		@Override
+		public ScriptEngine newScriptEngine() {
+			ScriptEngineManager manager = new ScriptEngineManager();
+			if (codeCacheDir != null && findFactory(manager, "nashorn") != null) {
+				return new NashornProvider(codeCacheDir).newScriptEngine();
+			}
+			ScriptEngine engine = manager.getEngineByName("JavaScript");
+			if (engine == null) {
+				throw notAvailable(getName(), "no JavaScript engine in the JRE; put Nashorn, GraalJS or Rhino in CLASSPATH");
+			}
+			return engine;
+		}
+
+		@Override
+		protected ScriptEngineFactory findEngineFactory(ScriptEngineManager manager) {
+			ScriptEngineFactory nashorn = findFactory(manager, "nashorn");
+			if (codeCacheDir != null && nashorn != null) {
+				return nashorn;
+			}
+			return findFactory(manager, "JavaScript");
+		}
+
+		@Override
+		public boolean isSharable(ScriptEngine engine) {
+			if (engine.getFactory().getNames().contains("nashorn")) {
+				return true;
+			}
+			return super.isSharable(engine);
+		}
+	}
+
+	/**
+	 * Nashorn provided by JRE8-14, or standalone Nashorn (org.openjdk.nashorn) on JDK15+.
+	 */
+	private static class NashornProvider extends EngineProvider {
+
+		private final File codeCacheDir;
+
+		public NashornProvider(File codeCacheDir) {
+			this.codeCacheDir = codeCacheDir;
+		}
+
+		@Override
+		public String getName() {
+			return NASHORN;
+		}
+
+		@Override
+		public ScriptEngine newScriptEngine() {
+			ScriptEngineFactory factory = findFactory(new ScriptEngineManager(), "nashorn");
+			if (factory == null) {
+				throw notAvailable(getName(), "requires JRE8-14, or nashorn-core in CLASSPATH");
+			}
+			if (codeCacheDir == null) {
+				return factory.getScriptEngine();
+			}
+			try {
+				// NashornScriptEngineFactory#getScriptEngine(String...)
+				Method getScriptEngine = factory.getClass().getMethod("getScriptEngine", String[].class);
+				System.setProperty("nashorn.persistent.code.cache", codeCacheDir.getPath());
+				return (ScriptEngine) getScriptEngine.invoke(factory, (Object) new String[] { "--persistent-code-cache" });
+			} catch (Exception e) {
+				throw new IllegalStateException("Cannot enable the persistent code cache", e);
+			}
+		}
+
+		@Override
+		public boolean isSharable(ScriptEngine engine) {
+			// Nashorn doesn't declare THREADING, but scripts in different globals can run concurrently.
+			return true;
+		}
+	}
+
+	/**
+	 * GraalJS.
+	 *
+	 * <p>All script engines are created on one polyglot engine,
+	 * so that the parsed and compiled code of the compiler is shared among the contexts.</p>
+	 */
+	private static class GraalJSProvider extends EngineProvider {
+
+		private static Object sharedEngine;	// org.graalvm.polyglot.Engine
+
+		@Override
+		public String getName() {
+			return GRAALJS;
+		}
+
+		@Override
+		public ScriptEngine newScriptEngine() {
+			try {
+				Class<?> engineClass = Class.forName("org.graalvm.polyglot.Engine");
+				Class<?> contextClass = Class.forName("org.graalvm.polyglot.Context");
+				Class<?> builderClass = Class.forName("org.graalvm.polyglot.Context$Builder");
+				Class<?> hostAccessClass = Class.forName("org.graalvm.polyglot.HostAccess");
+				Class<?> scriptEngineClass = Class.forName("com.oracle.truffle.js.scriptengine.GraalJSScriptEngine");
+
+				Object polyglotEngine = getSharedEngine(engineClass);
+
+				// Context.newBuilder("js").allowHostAccess(HostAccess.ALL)
+				Object builder = contextClass.getMethod("newBuilder", String[].class).invoke(null, (Object) new String[] { "js" });
+				Object hostAccessAll = hostAccessClass.getField("ALL").get(null);
+				builder = builderClass.getMethod("allowHostAccess", hostAccessClass).invoke(builder, hostAccessAll);
+
+				// GraalJSScriptEngine.create(engine, builder)
+				Method create = scriptEngineClass.getMethod("create", engineClass, builderClass);
+				return (ScriptEngine) create.invoke(null, polyglotEngine, builder);
+			} catch (ClassNotFoundException e) {
+				throw notAvailable(getName(), "requires GraalJS (js and js-scriptengine) in CLASSPATH");
+			} catch (Exception e) {
+				throw new IllegalStateException("Cannot create a GraalJS script engine", e);
+			}
+		}
+
+		@Override
+		protected ScriptEngineFactory findEngineFactory(ScriptEngineManager manager) {
+			return findFactory(manager, "graal.js");
+		}
+
+		private static synchronized Object getSharedEngine(Class<?> engineClass) throws Exception {
+			if (sharedEngine == null) {
+				sharedEngine = engineClass.getMethod("create").invoke(null);
+			}
+			return sharedEngine;
+		}
+
+		@Override
+		public boolean isSharable(ScriptEngine engine) {
+			// a polyglot context can't be accessed by multiple threads at the same time
+			return false;
+		}
+	}
+
+	/**
+	 * Rhino provided by JRE6-7, or standalone Rhino with rhino-engine.
+	 */
+	private static class RhinoProvider extends EngineProvider {
+
+		@Override
+		public String getName() {
+			return RHINO;
+		}
+
+		@Override
+		public ScriptEngine newScriptEngine() {
+			ScriptEngineFactory factory = findFactory(new ScriptEngineManager(), "rhino");
+			if (factory == null) {
+				throw notAvailable(getName(), "requires JRE6-7, or rhino and rhino-engine in CLASSPATH");
+			}
+			return factory.getScriptEngine();
+		}
+	}
+}
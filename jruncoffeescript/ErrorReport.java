@@ -0,0 +1,196 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compile errors collected over a build, reported at the end.
+ *
+ * <p>The report is written as JSON, or as the XML format of Checkstyle if the file name ends with ".xml",
+ * which is understood by most CI servers.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class ErrorReport {
+
+	private final List<CompileError> errors = new ArrayList<CompileError>();
+
+	public synchronized void add(CompileError error) {
+		errors.add(error);
+	}
+
+	public synchronized boolean isEmpty() {
+		return errors.isEmpty();
+	}
+
+	/**
+	 * Removes the errors for the next build.
+	 */
+	public synchronized void clear() {
+		errors.clear();
+	}
+
+	/**
+	 * Moves the errors collected so far to a new report, so that the errors added while it is printed
+	 * or written are kept for the next report.
+	 */
+	public synchronized ErrorReport drain() {
+		ErrorReport report = new ErrorReport();
+		report.errors.addAll(errors);
+		errors.clear();
+		return report;
+	}
+
+	/**
+	 * Returns the errors sorted by the file name and the position.
+	 */
+	private synchronized List<CompileError> getErrors() {
+		List<CompileError> sorted = new ArrayList<CompileError>(errors);
+		Collections.sort(sorted, new Comparator<CompileError>() {
+			@Override
+			public int compare(CompileError e1, CompileError e2) {
+				int c = String.valueOf(e1.getFilename()).compareTo(String.valueOf(e2.getFilename()));
+				if (c == 0) {
+					c = e1.getLine() - e2.getLine();
+				}
+				if (c == 0) {
+					c = e1.getColumn() - e2.getColumn();
+				}
+				return c;
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * Prints one line for each error.
+	 */
+	public void printSummary(PrintStream out) {
+		List<CompileError> errors = getErrors();
+		int files = 0;
+		String prevFile = null;
+		for (CompileError error : errors) {
+			String file = String.valueOf(error.getFilename());
+			if (!file.equals(prevFile)) {
+				++files;
+				prevFile = file;
+			}
+		}
+		out.println(errors.size() + " error(s) in " + files + " file(s):");
+		for (CompileError error : errors) {
+			out.println("  " + error.getFilename() + ":" + error.getLine() + ":" + error.getColumn() + ": " + error.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the report to the file, as Checkstyle XML if the name ends with ".xml", or as JSON otherwise.
+	 */
+	public void write(File file) throws IOException {
+		Writer w = FileUtil.newWriter(file);
+		try {
+			if (file.getName().endsWith(".xml")) {
+				writeCheckstyle(w);
+			} else {
+				writeJson(w);
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	private void writeJson(Writer w) throws IOException {
+		List<CompileError> errors = getErrors();
+		w.write("{\n\"errors\": [");
+		for (int i = 0; i < errors.size(); ++i) {
+			CompileError error = errors.get(i);
+			w.write((i > 0) ? ",\n" : "\n");
+			w.write("{\"file\": ");
+			Json.quote(w, String.valueOf(error.getFilename()));
+			w.write(", \"line\": " + error.getLine());
+			w.write(", \"column\": " + error.getColumn());
+			w.write(", \"message\": ");
+			Json.quote(w, error.getMessage());
+			w.write("}");
+		}
+		w.write("\n]\n}\n");
+	}
+
+	private void writeCheckstyle(Writer w) throws IOException {
+		w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		w.write("<checkstyle version=\"4.3\">\n");
+		String prevFile = null;
+		for (CompileError error : getErrors()) {
+			String file = String.valueOf(error.getFilename());
+			if (!file.equals(prevFile)) {
+				if (prevFile != null) {
+					w.write("</file>\n");
+				}
+				w.write("<file name=\"" + escapeXml(file) + "\">\n");
+				prevFile = file;
+			}
+			w.write("<error line=\"" + error.getLine() + "\" column=\"" + error.getColumn()
+					+ "\" severity=\"error\" message=\"" + escapeXml(error.getMessage()) + "\" source=\"coffeescript\"/>\n");
+		}
+		if (prevFile != null) {
+			w.write("</file>\n");
+		}
+		w.write("</checkstyle>\n");
+	}
+
+	private static String escapeXml(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '"':
+				sb.append("&quot;");
+				break;
+			case '\n':
+				sb.append("&#10;");
+				break;
+			default:
+				if (c < 0x20 && c != '\t') {
+					sb.append(' ');
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.toString();
+	}
+}
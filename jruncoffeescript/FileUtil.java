@@ -0,0 +1,330 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File I/O with NIO channels.
+ *
+ * <p>Text files are read and written in UTF-8 through buffers which are reused by each thread,
+ * and large files are read through memory mapping, so that no intermediate copy of the whole file is made.
+ * A mapping is released only when it is garbage collected, and Windows can't rename or delete a mapped file,
+ * so memory mapping is not used on Windows.
+ * Files are written to a temporary file in the same directory and renamed to the target,
+ * so that other processes (file watchers, browsers) never see a partially written file.</p>
+ */
+final class FileUtil {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** files of this size or larger are read through memory mapping */
+	private static final long MAP_THRESHOLD = 1024 * 1024;
+
+	/** whether a mapped file can be renamed and deleted */
+	private static final boolean MAP_ENABLED = !System.getProperty("os.name", "").startsWith("Windows");
+
+	/** size of the buffers to compare the files */
+	private static final int COMPARE_BUFFER_SIZE = 64 * 1024;
+
+	/** size of the buffer to encode the output */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	/** buffers larger than this are not kept for reuse */
+	private static final int MAX_CACHED_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> byteBuffers = new ThreadLocal<ByteBuffer>();
+	private static final ThreadLocal<CharBuffer> charBuffers = new ThreadLocal<CharBuffer>();
+
+	private FileUtil() {
+	}
+
+	/**
+	 * Reads a UTF-8 text file.
+	 */
+	public static String readText(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (MAP_ENABLED && size >= MAP_THRESHOLD) {
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				return decode(mapped);
+			}
+			return readText(channel, (int) size);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads UTF-8 text from the stream. The stream is not closed.
+	 */
+	public static String readText(InputStream in) throws IOException {
+		return readText(Channels.newChannel(in), WRITE_BUFFER_SIZE);
+	}
+
+	private static String readText(ReadableByteChannel channel, int expectedSize) throws IOException {
+		// one more byte to detect the end of the file without growing the buffer
+		ByteBuffer buffer = getByteBuffer(expectedSize + 1);
+		for (;;) {
+			if (!buffer.hasRemaining()) {
+				// the file has grown, or the size is unknown
+				ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+			if (channel.read(buffer) < 0) {
+				break;
+			}
+		}
+		buffer.flip();
+		String text = decode(buffer);
+		releaseByteBuffer(buffer);
+		return text;
+	}
+
+	private static String decode(ByteBuffer bytes) throws CharacterCodingException {
+		CharsetDecoder decoder = UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		// the number of chars never exceeds the number of bytes in UTF-8
+		CharBuffer chars = getCharBuffer(bytes.remaining());
+		CoderResult result = decoder.decode(bytes, chars, true);
+		if (!result.isUnderflow()) {
+			result.throwException();
+		}
+		result = decoder.flush(chars);
+		if (!result.isUnderflow()) {
+			result.throwException();
+		}
+		String text = new String(chars.array(), chars.arrayOffset(), chars.position());
+		releaseCharBuffer(chars);
+		return text;
+	}
+
+	/**
+	 * Writes a UTF-8 text file atomically.
+	 */
+	public static void writeText(File file, CharSequence text) throws IOException {
+		CharsetEncoder encoder = UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer chars = CharBuffer.wrap(text);
+		ByteBuffer buffer = getByteBuffer(WRITE_BUFFER_SIZE);
+
+		File tmpFile = createTempFile(file);
+		try {
+			FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				boolean flushing = false;
+				for (;;) {
+					CoderResult result = flushing ? encoder.flush(buffer) : encoder.encode(chars, buffer, true);
+					if (result.isError()) {
+						result.throwException();
+					}
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+					buffer.clear();
+					if (result.isUnderflow()) {
+						if (flushing) {
+							break;
+						}
+						flushing = true;
+					}
+				}
+			} finally {
+				channel.close();
+			}
+			move(tmpFile, file);
+		} finally {
+			tmpFile.delete();
+			releaseByteBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Opens a buffered UTF-8 writer to the file.
+	 */
+	public static Writer newWriter(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		return Channels.newWriter(channel, UTF_8.newEncoder(), WRITE_BUFFER_SIZE);
+	}
+
+	/**
+	 * Copies a file atomically.
+	 */
+	public static void copy(File source, File target) throws IOException {
+		File tmpFile = createTempFile(target);
+		try {
+			FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+			try {
+				FileChannel out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				try {
+					long size = in.size();
+					long position = 0;
+					while (position < size) {
+						position += in.transferTo(position, size - position, out);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			move(tmpFile, target);
+		} finally {
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Returns whether the two files have the same content.
+	 */
+	public static boolean contentEquals(File file1, File file2) throws IOException {
+		if (!file1.isFile() || !file2.isFile() || file1.length() != file2.length()) {
+			return false;
+		}
+		FileChannel channel1 = FileChannel.open(file1.toPath(), StandardOpenOption.READ);
+		try {
+			FileChannel channel2 = FileChannel.open(file2.toPath(), StandardOpenOption.READ);
+			try {
+				long size = channel1.size();
+				if (size != channel2.size()) {
+					return false;
+				}
+				// read rather than mapped, so that the files can be replaced right after the comparison
+				ByteBuffer buffer1 = ByteBuffer.allocate(COMPARE_BUFFER_SIZE);
+				ByteBuffer buffer2 = ByteBuffer.allocate(COMPARE_BUFFER_SIZE);
+				for (;;) {
+					int n1 = readFully(channel1, buffer1);
+					int n2 = readFully(channel2, buffer2);
+					if (n1 != n2 || !buffer1.equals(buffer2)) {
+						return false;
+					}
+					if (n1 < COMPARE_BUFFER_SIZE) {
+						return true;
+					}
+				}
+			} finally {
+				channel2.close();
+			}
+		} finally {
+			channel1.close();
+		}
+	}
+
+	/**
+	 * Fills the buffer from the channel unless the end is reached, and flips it.
+	 *
+	 * @return number of bytes read
+	 */
+	private static int readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer.remaining();
+	}
+
+	/**
+	 * Moves a file, replacing the target atomically if the file system supports it.
+	 */
+	public static void move(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Creates a temporary file next to the target file.
+	 * The name starts with "." so that it is ignored by most file watchers.
+	 */
+	public static File createTempFile(File target) throws IOException {
+		File dir = target.getAbsoluteFile().getParentFile();
+		return File.createTempFile("." + target.getName(), ".tmp", dir);
+	}
+
+	private static ByteBuffer getByteBuffer(int capacity) {
+		ByteBuffer buffer = byteBuffers.get();
+		if (buffer == null || buffer.capacity() < capacity) {
+			return ByteBuffer.allocate(capacity);
+		}
+		byteBuffers.set(null);
+		buffer.clear();
+		return buffer;
+	}
+
+	private static void releaseByteBuffer(ByteBuffer buffer) {
+		if (buffer.capacity() <= MAX_CACHED_BUFFER_SIZE) {
+			ByteBuffer cached = byteBuffers.get();
+			if (cached == null || cached.capacity() < buffer.capacity()) {
+				byteBuffers.set(buffer);
+			}
+		}
+	}
+
+	private static CharBuffer getCharBuffer(int capacity) {
+		CharBuffer buffer = charBuffers.get();
+		if (buffer == null || buffer.capacity() < capacity) {
+			return CharBuffer.allocate(capacity);
+		}
+		charBuffers.set(null);
+		buffer.clear();
+		return buffer;
+	}
+
+	private static void releaseCharBuffer(CharBuffer buffer) {
+		if (buffer.capacity() <= MAX_CACHED_BUFFER_SIZE) {
+			CharBuffer cached = charBuffers.get();
+			if (cached == null || cached.capacity() < buffer.capacity()) {
+				charBuffers.set(buffer);
+			}
+		}
+	}
+}
@@ -0,0 +1,170 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.MessageFormat;
+
+/**
+ * Artifact store on an HTTP server, shared by the machines of a team or CI.
+ *
+ * <p>An artifact is read by GET and written by PUT on the URL of its name under the base URL,
+ * so any server which can store files by PUT works, such as nginx with WebDAV, or a bucket of object storage.</p>
+ *
+ * <p>The remote cache only speeds up the build. If the server can't be reached,
+ * the store is disabled for the rest of the build with a warning, and the files are compiled locally.
+ * If the server refuses PUT, the store is used only for reading.</p>
+ */
+class HttpStore implements ArtifactStore {
+
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final int READ_TIMEOUT = 30000;
+
+	private final String baseUrl;
+	private final PrintStream err;
+	private volatile boolean readable = true;
+	private volatile boolean writable = true;
+
+	/**
+	 * @param baseUrl base URL of the artifacts
+	 * @param err stream for the warnings
+	 */
+	public HttpStore(String baseUrl, PrintStream err) {
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+		this.err = err;
+	}
+
+	@Override
+	public boolean fetch(String name, File file) throws IOException {
+		if (!readable) {
+			return false;
+		}
+		File tmpFile = FileUtil.createTempFile(file);
+		try {
+			if (!download(name, tmpFile)) {
+				return false;
+			}
+			if (!FileUtil.contentEquals(file, tmpFile)) {
+				FileUtil.move(tmpFile, file);
+			}
+			return true;
+		} finally {
+			tmpFile.delete();
+		}
+	}
+
+	private boolean download(String name, File file) {
+		try {
+			HttpURLConnection conn = open(name, "GET");
+			try {
+				int status = conn.getResponseCode();
+				if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+					return false;
+				}
+				if (status != HttpURLConnection.HTTP_OK) {
+					disable(MessageFormat.format("HTTP {0} {1}", status, conn.getResponseMessage()), true);
+					return false;
+				}
+				InputStream in = conn.getInputStream();
+				try {
+					Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				} finally {
+					in.close();
+				}
+				return true;
+			} finally {
+				conn.disconnect();
+			}
+		} catch (IOException e) {
+			disable(e.toString(), true);
+			return false;
+		}
+	}
+
+	@Override
+	public void put(String name, File file) throws IOException {
+		if (!writable) {
+			return;
+		}
+		try {
+			HttpURLConnection conn = open(name, "PUT");
+			try {
+				conn.setDoOutput(true);
+				conn.setFixedLengthStreamingMode(file.length());
+				conn.setRequestProperty("Content-Type", name.endsWith(".js") ? "application/javascript" : "application/json");
+				OutputStream out = conn.getOutputStream();
+				try {
+					Files.copy(file.toPath(), out);
+				} finally {
+					out.close();
+				}
+				int status = conn.getResponseCode();
+				if (status / 100 != 2) {
+					disable(MessageFormat.format("HTTP {0} {1}", status, conn.getResponseMessage()), false);
+				}
+			} finally {
+				conn.disconnect();
+			}
+		} catch (IOException e) {
+			disable(e.toString(), true);
+		}
+	}
+
+	private HttpURLConnection open(String name, String method) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + name).openConnection();
+		conn.setRequestMethod(method);
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		conn.setReadTimeout(READ_TIMEOUT);
+		conn.setUseCaches(false);
+		return conn;
+	}
+
+	/**
+	 * Stops using the server, warning only once.
+	 *
+	 * @param reason cause of the failure
+	 * @param all true to stop reading as well as writing
+	 */
+	private synchronized void disable(String reason, boolean all) {
+		if (readable && (writable || all)) {
+			err.println(MessageFormat.format("remote cache {0} is {1}: {2}",
+					baseUrl, all ? "disabled" : "read-only", reason));
+		}
+		writable = false;
+		if (all) {
+			readable = false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return baseUrl;
+	}
+}
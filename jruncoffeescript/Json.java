@@ -0,0 +1,262 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader and writer for the source maps and the reports.
+ *
+ * <p>Objects are read as {@link Map}, arrays as {@link List}, numbers as {@link Long} or {@link Double}.</p>
+ */
+final class Json {
+
+	private final String text;
+	private int pos = 0;
+
+	private Json(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Parses a JSON text.
+	 *
+	 * @throws IllegalArgumentException if the text is not valid JSON
+	 */
+	public static Object parse(String text) {
+		Json json = new Json(text);
+		Object value = json.readValue();
+		json.skipSpaces();
+		if (json.pos < text.length()) {
+			throw json.error("unexpected character");
+		}
+		return value;
+	}
+
+	/**
+	 * Appends the string as a JSON string literal.
+	 */
+	public static void quote(Appendable out, String s) throws IOException {
+		out.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+					out.append(String.format("\\u%04x", (int) c));
+				} else {
+					out.append(c);
+				}
+			}
+		}
+		out.append('"');
+	}
+
+	private Object readValue() {
+		skipSpaces();
+		if (pos >= text.length()) {
+			throw error("unexpected end of JSON");
+		}
+		char c = text.charAt(pos);
+		switch (c) {
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case '"':
+			return readString();
+		case 't':
+			expect("true");
+			return Boolean.TRUE;
+		case 'f':
+			expect("false");
+			return Boolean.FALSE;
+		case 'n':
+			expect("null");
+			return null;
+		default:
+			return readNumber();
+		}
+	}
+
+	private Map<String, Object> readObject() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		++pos;	// '{'
+		skipSpaces();
+		if (peek() == '}') {
+			++pos;
+			return map;
+		}
+		for (;;) {
+			skipSpaces();
+			if (peek() != '"') {
+				throw error("string expected");
+			}
+			String key = readString();
+			skipSpaces();
+			if (peek() != ':') {
+				throw error("':' expected");
+			}
+			++pos;
+			map.put(key, readValue());
+			skipSpaces();
+			char c = peek();
+			++pos;
+			if (c == '}') {
+				return map;
+			}
+			if (c != ',') {
+				throw error("',' or '}' expected");
+			}
+		}
+	}
+
+	private List<Object> readArray() {
+		List<Object> list = new ArrayList<Object>();
+		++pos;	// '['
+		skipSpaces();
+		if (peek() == ']') {
+			++pos;
+			return list;
+		}
+		for (;;) {
+			list.add(readValue());
+			skipSpaces();
+			char c = peek();
+			++pos;
+			if (c == ']') {
+				return list;
+			}
+			if (c != ',') {
+				throw error("',' or ']' expected");
+			}
+		}
+	}
+
+	private String readString() {
+		StringBuilder sb = new StringBuilder();
+		++pos;	// '"'
+		for (;;) {
+			char c = peek();
+			++pos;
+			if (c == '"') {
+				return sb.toString();
+			}
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			char e = peek();
+			++pos;
+			switch (e) {
+			case 'b':
+				sb.append('\b');
+				break;
+			case 'f':
+				sb.append('\f');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'u':
+				if (pos + 4 > text.length()) {
+					throw error("unexpected end of JSON");
+				}
+				try {
+					sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+				} catch (NumberFormatException ex) {
+					throw error("invalid unicode escape");
+				}
+				pos += 4;
+				break;
+			default:
+				sb.append(e);
+			}
+		}
+	}
+
+	private Number readNumber() {
+		int start = pos;
+		while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+			++pos;
+		}
+		String num = text.substring(start, pos);
+		try {
+			if (num.indexOf('.') < 0 && num.indexOf('e') < 0 && num.indexOf('E') < 0) {
+				return Long.valueOf(num);
+			}
+			return Double.valueOf(num);
+		} catch (NumberFormatException e) {
+			pos = start;
+			throw error("invalid value");
+		}
+	}
+
+	private void expect(String word) {
+		if (!text.startsWith(word, pos)) {
+			throw error("invalid value");
+		}
+		pos += word.length();
+	}
+
+	private char peek() {
+		if (pos >= text.length()) {
+			throw error("unexpected end of JSON");
+		}
+		return text.charAt(pos);
+	}
+
+	private void skipSpaces() {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+			++pos;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(MessageFormat.format("{0} at {1}", message, pos));
+	}
+}
@@ -0,0 +1,114 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+/**
+ * Preprocessor of Literate CoffeeScript, which runs in Java instead of the script engine.
+ *
+ * <p>This is the same transformation as <code>invertLiterate</code> of CoffeeScript:
+ * the indented code blocks are kept, and the other lines are turned into comments.
+ * Each line is converted to one line, so the line numbers of the errors and the source maps
+ * are not changed, and the compiled code is the same as the one compiled with <code>literate: true</code>.</p>
+ */
+class Literate {
+
+	private static final char BOM = '\uFEFF';
+
+	private Literate() {
+	}
+
+	/**
+	 * Converts the literate source code to plain CoffeeScript.
+	 */
+	public static String invert(String source) {
+		int start = 0;
+		if (!source.isEmpty() && source.charAt(0) == BOM) {
+			// removed by the lexer before the conversion
+			start = 1;
+		}
+
+		StringBuilder s = new StringBuilder(source.length() + source.length() / 8);
+		boolean maybeCode = true;
+		for (;;) {
+			int end = source.indexOf('\n', start);
+			int lineEnd = (end >= 0) ? end : source.length();
+			if (maybeCode && isCodeLine(source, start, lineEnd)) {
+				s.append(source, start, lineEnd);
+			} else if (maybeCode = isBlankLine(source, start, lineEnd)) {
+				s.append(source, start, lineEnd);
+			} else {
+				s.append("# ").append(source, start, lineEnd);
+			}
+			if (end < 0) {
+				break;
+			}
+			s.append('\n');
+			start = end + 1;
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Returns whether the line is indented by 4 spaces or a tab, as /^([ ]{4}|[ ]{0,3}\t)/.
+	 */
+	private static boolean isCodeLine(String source, int start, int end) {
+		for (int i = start; i < end && i < start + 4; ++i) {
+			char c = source.charAt(i);
+			if (c == '\t') {
+				return true;
+			}
+			if (c != ' ') {
+				return false;
+			}
+		}
+		return end - start >= 4;
+	}
+
+	/**
+	 * Returns whether the line has only white spaces, as /^\s*$/ of JavaScript.
+	 */
+	private static boolean isBlankLine(String source, int start, int end) {
+		for (int i = start; i < end; ++i) {
+			if (!isWhitespace(source.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isWhitespace(char c) {
+		switch (c) {
+		case '\t':
+		case '\u000B':
+		case '\f':
+		case '\r':
+		case ' ':
+		case '\u00A0':
+		case BOM:
+		case '\u2028':
+		case '\u2029':
+			return true;
+		default:
+			return Character.getType(c) == Character.SPACE_SEPARATOR;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Mappings collected from the fragments of the compiled code, which are serialized in Java.
+ *
+ * <p>The compiler returns the positions as a comma-separated list of integers,
+ * 4 integers per segment: generated line, generated column, source line and source column.
+ * The segments are in the order of the generated positions.
+ * Like <code>SourceMap#add</code> of CoffeeScript with <code>noReplace</code>,
+ * only the first segment is kept at each generated position.</p>
+ */
+class RawSourceMap {
+
+	private final int[] segments;
+	private final int length;
+	private final String file;
+	private final String sourceRoot;
+	private final List<String> sources;
+
+	private RawSourceMap(int[] segments, int length, String file, String sourceRoot, List<String> sources) {
+		this.segments = segments;
+		this.length = length;
+		this.file = file;
+		this.sourceRoot = sourceRoot;
+		this.sources = sources;
+	}
+
+	/**
+	 * Parses the mappings returned by the compiler.
+	 *
+	 * @param mappings comma-separated integers
+	 * @param options options of the compilation, which provide "file", "sourceRoot" and "sources"
+	 */
+	public static RawSourceMap parse(CharSequence mappings, CompileOptions options) {
+		int[] segments = new int[64];
+		int length = 0;
+		int n = mappings.length();
+		int i = 0;
+		while (i < n) {
+			int value = 0;
+			boolean negative = false;
+			if (mappings.charAt(i) == '-') {
+				negative = true;
+				++i;
+			}
+			for (; i < n; ++i) {
+				char c = mappings.charAt(i);
+				if (c == ',') {
+					break;
+				}
+				if (c < '0' || c > '9') {
+					throw new IllegalArgumentException("invalid mappings");
+				}
+				value = value * 10 + (c - '0');
+			}
+			++i;	// ','
+			if (length == segments.length) {
+				int[] grown = new int[length * 2];
+				System.arraycopy(segments, 0, grown, 0, length);
+				segments = grown;
+			}
+			segments[length++] = negative ? -value : value;
+		}
+		if (length % 4 != 0) {
+			throw new IllegalArgumentException("invalid mappings");
+		}
+
+		String file = (options.getGeneratedFile() != null) ? options.getGeneratedFile() : "";
+		String sourceRoot = (options.getSourceRoot() != null) ? options.getSourceRoot() : "";
+		return new RawSourceMap(segments, length, file, sourceRoot, options.getSourceFiles());
+	}
+
+	/**
+	 * Adds the segments to the writer, shifting the generated lines.
+	 *
+	 * @param writer writer of the joined source map
+	 * @param lineOffset line in the generated file where the code starts
+	 */
+	public void appendTo(SourceMapWriter writer, int lineOffset) throws IOException {
+		int source = writer.addSource(sourceRoot + (sources.isEmpty() ? "" : sources.get(0)));
+		int prevLine = -1;
+		int prevColumn = -1;
+		for (int i = 0; i < length; i += 4) {
+			int line = segments[i];
+			int column = segments[i + 1];
+			if (line == prevLine && column == prevColumn) {
+				continue;
+			}
+			writer.addSegment(lineOffset + line, column, source, segments[i + 2], segments[i + 3]);
+			prevLine = line;
+			prevColumn = column;
+		}
+	}
+
+	/**
+	 * Returns the source map V3 in the same format as <code>v3SourceMap</code> of CoffeeScript.
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder(length * 3 + 256);
+		try {
+			sb.append("{\n  \"version\": 3,\n  \"file\": ");
+			Json.quote(sb, file);
+			sb.append(",\n  \"sourceRoot\": ");
+			Json.quote(sb, sourceRoot);
+			sb.append(",\n  \"sources\": [");
+			for (int i = 0; i < sources.size(); ++i) {
+				sb.append((i > 0) ? ",\n    " : "\n    ");
+				Json.quote(sb, sources.get(i));
+			}
+			sb.append(sources.isEmpty() ? "]" : "\n  ]");
+			sb.append(",\n  \"names\": [],\n  \"mappings\": \"");
+			appendMappings(sb);
+			sb.append("\"\n}");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);	// never happens
+		}
+		return sb.toString();
+	}
+
+	private void appendMappings(StringBuilder sb) throws IOException {
+		int generatedLine = 0;
+		int prevColumn = 0;
+		int prevSourceLine = 0;
+		int prevSourceColumn = 0;
+		boolean needComma = false;
+		int prevLine = -1;
+		int prevGeneratedColumn = -1;
+		for (int i = 0; i < length; i += 4) {
+			int line = segments[i];
+			int column = segments[i + 1];
+			if (line == prevLine && column == prevGeneratedColumn) {
+				continue;
+			}
+			prevLine = line;
+			prevGeneratedColumn = column;
+
+			while (generatedLine < line) {
+				sb.append(';');
+				++generatedLine;
+				prevColumn = 0;
+				needComma = false;
+			}
+			if (needComma) {
+				sb.append(',');
+			}
+			Base64Vlq.encode(sb, column - prevColumn);
+			prevColumn = column;
+			sb.append('A');	// source index 0
+			Base64Vlq.encode(sb, segments[i + 2] - prevSourceLine);
+			prevSourceLine = segments[i + 2];
+			Base64Vlq.encode(sb, segments[i + 3] - prevSourceColumn);
+			prevSourceColumn = segments[i + 3];
+			needComma = true;
+		}
+	}
+}
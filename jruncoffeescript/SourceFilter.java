@@ -0,0 +1,117 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Selects the source files in the directories.
+ *
+ * <p>Patterns are globs of {@link FileSystem#getPathMatcher(String)}.
+ * A pattern which contains "/" is matched against the path relative to the directory
+ * specified in the arguments, and other patterns are matched against the file name.
+ * Directories whose names are in {@link #SKIP_DIRS} are not searched.</p>
+ */
+class SourceFilter {
+
+	/** names of the directories which are never searched */
+	static final Set<String> SKIP_DIRS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			"node_modules", "bower_components", ".git", ".hg", ".svn")));
+
+	private final List<Pattern> includes;
+	private final List<Pattern> excludes;
+
+	/**
+	 * @param includes patterns of the files to compile; if empty, the files which have the extensions of CoffeeScript are compiled
+	 * @param excludes patterns of the files and the directories to skip
+	 */
+	public SourceFilter(List<String> includes, List<String> excludes) {
+		this.includes = compile(includes);
+		this.excludes = compile(excludes);
+	}
+
+	private static List<Pattern> compile(List<String> globs) {
+		FileSystem fs = FileSystems.getDefault();
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		for (String glob : globs) {
+			patterns.add(new Pattern(fs.getPathMatcher("glob:" + glob), glob.contains("/")));
+		}
+		return patterns;
+	}
+
+	/**
+	 * Returns whether the directory should be searched.
+	 *
+	 * @param relativePath path of the directory relative to the root directory
+	 */
+	public boolean acceptDirectory(Path relativePath) {
+		Path name = relativePath.getFileName();
+		if (name != null && SKIP_DIRS.contains(name.toString())) {
+			return false;
+		}
+		return !matches(excludes, relativePath);
+	}
+
+	/**
+	 * Returns whether the file should be compiled.
+	 *
+	 * @param relativePath path of the file relative to the root directory
+	 */
+	public boolean acceptFile(Path relativePath) {
+		if (includes.isEmpty()) {
+			if (!Coffee.isSourceFileName(relativePath.getFileName().toString())) {
+				return false;
+			}
+		} else if (!matches(includes, relativePath)) {
+			return false;
+		}
+		return !matches(excludes, relativePath);
+	}
+
+	private static boolean matches(List<Pattern> patterns, Path relativePath) {
+		for (Pattern pattern : patterns) {
+			if (pattern.matcher.matches(pattern.isPath ? relativePath : relativePath.getFileName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static class Pattern {
+
+		final PathMatcher matcher;
+		final boolean isPath;	// matched against the relative path instead of the file name
+
+		Pattern(PathMatcher matcher, boolean isPath) {
+			this.matcher = matcher;
+			this.isPath = isPath;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a source map V3 to a stream.
+ *
+ * <p>The "mappings" are written as the segments are added,
+ * and the "sources" are written at the end, so only the list of the sources is held in memory.
+ * The segments have no names.</p>
+ */
+class SourceMapWriter implements Closeable {
+
+	private final Writer writer;
+
+	private final List<String> sources = new ArrayList<String>();
+	private final Map<String, Integer> sourceIndexes = new HashMap<String, Integer>();
+
+	// state of the relative encoding
+	private int generatedLine = 0;
+	private boolean firstSegmentInLine = true;
+	private int prevGeneratedColumn = 0;
+	private int prevSource = 0;
+	private int prevSourceLine = 0;
+	private int prevSourceColumn = 0;
+
+	/**
+	 * Starts writing a source map.
+	 *
+	 * @param writer stream to write the source map
+	 * @param file path of the generated file
+	 */
+	public SourceMapWriter(Writer writer, String file) throws IOException {
+		this.writer = writer;
+		writer.write("{\n\"version\": 3,\n\"file\": ");
+		Json.quote(writer, file);
+		writer.write(",\n\"sourceRoot\": \"\",\n\"mappings\": \"");
+	}
+
+	/**
+	 * Returns the index of the source, adding it to the "sources" if needed.
+	 */
+	public int addSource(String source) {
+		Integer index = sourceIndexes.get(source);
+		if (index == null) {
+			index = sources.size();
+			sources.add(source);
+			sourceIndexes.put(source, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Adds a segment. The segments must be added in the order of the generated positions.
+	 *
+	 * @param line zero-based line in the generated file
+	 * @param column zero-based column in the generated file
+	 * @param source index of the source, or -1 if the segment has no source position
+	 * @param sourceLine zero-based line in the source
+	 * @param sourceColumn zero-based column in the source
+	 */
+	public void addSegment(int line, int column, int source, int sourceLine, int sourceColumn) throws IOException {
+		if (line < generatedLine) {
+			throw new IllegalArgumentException("segments must be added in order");
+		}
+		while (generatedLine < line) {
+			writer.write(';');
+			++generatedLine;
+			firstSegmentInLine = true;
+			prevGeneratedColumn = 0;
+		}
+		if (!firstSegmentInLine) {
+			writer.write(',');
+		}
+		firstSegmentInLine = false;
+
+		Base64Vlq.encode(writer, column - prevGeneratedColumn);
+		prevGeneratedColumn = column;
+		if (source < 0) {
+			return;
+		}
+		Base64Vlq.encode(writer, source - prevSource);
+		Base64Vlq.encode(writer, sourceLine - prevSourceLine);
+		Base64Vlq.encode(writer, sourceColumn - prevSourceColumn);
+		prevSource = source;
+		prevSourceLine = sourceLine;
+		prevSourceColumn = sourceColumn;
+	}
+
+	/**
+	 * Writes the rest of the source map and closes the stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			writer.write("\",\n\"sources\": ");
+			writeArray(sources);
+			writer.write(",\n\"names\": []\n}\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	private void writeArray(List<String> items) throws IOException {
+		writer.write('[');
+		for (int i = 0; i < items.size(); ++i) {
+			if (i > 0) {
+				writer.write(", ");
+			}
+			Json.quote(writer, items.get(i));
+		}
+		writer.write(']');
+	}
+}
@@ -0,0 +1,216 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package jruncoffeescript;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.MessageFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Finds the source files in the directories in parallel.
+ *
+ * <p>Each directory is listed by a fork-join task, which forks the tasks of its subdirectories
+ * without waiting for them. The files are returned through an iterator in a deterministic order
+ * (entries of each directory sorted by name, depth-first) as soon as the directories which
+ * precede them are listed, so that the compilation can start before the whole tree is searched.</p>
+ */
+class SourceScanner {
+
+	private final SourceFilter filter;
+	private final int parallelism;
+	private final PrintStream err;
+
+	/**
+	 * @param filter filter of the files and the directories
+	 * @param parallelism number of threads to list the directories
+	 * @param err stream for the warnings
+	 */
+	public SourceScanner(SourceFilter filter, int parallelism, PrintStream err) {
+		this.filter = filter;
+		this.parallelism = parallelism;
+		this.err = err;
+	}
+
+	/**
+	 * Starts searching the source files.
+	 * Files in the arguments are returned as they are, and directories are searched recursively.
+	 *
+	 * @param args source files and directories
+	 * @return iterator of the paths of the source files, which must be closed if it is not exhausted
+	 */
+	public SourceIterator scan(List<String> args) {
+		ForkJoinPool pool = null;
+		List<Object> entries = new ArrayList<Object>();
+		for (String arg : args) {
+			Path path = Paths.get(arg);
+			if (Files.isDirectory(path)) {
+				if (pool == null) {
+					pool = new ForkJoinPool(parallelism);
+				}
+				DirectoryTask task = new DirectoryTask(path, path);
+				pool.execute(task);
+				entries.add(task);
+			} else {
+				entries.add(arg);
+			}
+		}
+		return new SourceIterator(entries, pool);
+	}
+
+	/**
+	 * Lists a directory. The result is the list of the paths of the source files and the tasks of the subdirectories.
+	 */
+	private class DirectoryTask extends RecursiveTask<List<Object>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path root;
+		private final Path dir;
+
+		DirectoryTask(Path root, Path dir) {
+			this.root = root;
+			this.dir = dir;
+		}
+
+		@Override
+		protected List<Object> compute() {
+			TreeMap<String, Path> sorted = new TreeMap<String, Path>();
+			try {
+				DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+				try {
+					for (Path entry : stream) {
+						sorted.put(entry.getFileName().toString(), entry);
+					}
+				} finally {
+					stream.close();
+				}
+			} catch (IOException e) {
+				err.println(MessageFormat.format("WARNING: cannot read directory: {0} ({1})", dir, e));
+				return Collections.emptyList();
+			}
+
+			List<Object> entries = new ArrayList<Object>();
+			for (Path entry : sorted.values()) {
+				Path relativePath = root.relativize(entry);
+				if (Files.isDirectory(entry)) {
+					if (filter.acceptDirectory(relativePath)) {
+						DirectoryTask task = new DirectoryTask(root, entry);
+						task.fork();
+						entries.add(task);
+					}
+				} else if (filter.acceptFile(relativePath)) {
+					entries.add(entry.toString());
+				}
+			}
+			return entries;
+		}
+	}
+
+	/**
+	 * Iterator of the found source files. Closing it stops the search.
+	 */
+	static class SourceIterator implements Iterator<String>, Closeable {
+
+		private final Deque<Iterator<Object>> stack = new ArrayDeque<Iterator<Object>>();
+		private final ForkJoinPool pool;
+		private String next = null;
+
+		SourceIterator(List<Object> entries, ForkJoinPool pool) {
+			this.pool = pool;
+			stack.push(entries.iterator());
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && !stack.isEmpty()) {
+				Iterator<Object> it = stack.peek();
+				if (!it.hasNext()) {
+					stack.pop();
+					continue;
+				}
+				Object entry = it.next();
+				if (entry instanceof DirectoryTask) {
+					stack.push(waitFor((DirectoryTask) entry).iterator());
+				} else {
+					next = (String) entry;
+				}
+			}
+			if (next == null && pool != null) {
+				pool.shutdown();
+			}
+			return next != null;
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			String path = next;
+			next = null;
+			return path;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Stops searching the directories, when the files are no longer needed.
+		 */
+		@Override
+		public void close() {
+			stack.clear();
+			next = null;
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+		}
+
+		private List<Object> waitFor(DirectoryTask task) {
+			try {
+				return task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.text.MessageFormat;
+
+import javax.script.ScriptException;
+
+/**
+ * Compiler of the sources read from a stream, for the pipelines of the build tools.
+ *
+ * <p>With <code>--stdio</code>, the whole input is one source, and the compiled code is written to the output.
+ * With <code>--stream</code>, the input is a sequence of framed documents, and a framed result is written
+ * and flushed for each of them, so a process can compile many sources with warmed-up engines.</p>
+ *
+ * <pre>
+ * request:  LENGTH SP NAME LF SOURCE              (LENGTH bytes of UTF-8)
+ * response: "js" SP JS_LENGTH SP MAP_LENGTH LF JS MAP
+ *           "error" SP LENGTH LF MESSAGE
+ * </pre>
+ *
+ * <p>The name is used for the literate style (by the extension), the messages and the source map.
+ * The map is empty without <code>--map</code>.</p>
+ */
+class StreamCompiler {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	private final Coffee coffee;
+
+	public StreamCompiler(Coffee coffee) {
+		this.coffee = coffee;
+	}
+
+	/**
+	 * Compiles the whole input as a source, and writes the code with the inline source map if enabled.
+	 *
+	 * @return exit status
+	 */
+	public int compileStdio(String name, InputStream in, PrintStream out, PrintStream err) throws ScriptException, IOException {
+		CompileResult result = coffee.compileDocument(name, FileUtil.readText(in));
+		if (!printResult(result, out, err)) {
+			return 1;
+		}
+		out.flush();
+		return 0;
+	}
+
+	/**
+	 * Prints the compiled code with the inline source map if enabled, or the errors.
+	 *
+	 * @return true if the compilation succeeded
+	 */
+	static boolean printResult(CompileResult result, PrintStream out, PrintStream err) {
+		if (!result.isSuccess()) {
+			for (CompileError error : result.getErrors()) {
+				err.println(error.toString());
+			}
+			return false;
+		}
+		// written in UTF-8 like the js files, regardless of the encoding of the platform
+		StringBuilder js = new StringBuilder(result.getJs());
+		if (result.getSourceMap() != null) {
+			js.append("\n//# sourceMappingURL=data:application/json;charset=utf-8;base64,");
+			js.append(base64(result.getSourceMap().getBytes(UTF_8)));
+			js.append('\n');
+		}
+		byte[] bytes = js.toString().getBytes(UTF_8);
+		out.write(bytes, 0, bytes.length);
+		return true;
+	}
+
+	/**
+	 * Compiles the framed documents until the end of the input.
+	 *
+	 * @return exit status, 1 if any document has an error
+	 */
+	public int compileStream(InputStream in, OutputStream out) throws ScriptException, IOException {
+		int status = 0;
+		for (;;) {
+			String header = readLine(in);
+			if (header == null) {
+				return status;
+			}
+			int sp = header.indexOf(' ');
+			int length;
+			try {
+				length = Integer.parseInt((sp >= 0) ? header.substring(0, sp) : header);
+			} catch (NumberFormatException e) {
+				length = -1;
+			}
+			if (length < 0) {
+				throw new IOException(MessageFormat.format("invalid frame header: {0}", header));
+			}
+			String name = (sp >= 0) ? header.substring(sp + 1) : "";
+			byte[] source = readFully(in, length);
+
+			CompileResult result = coffee.compileDocument(name, new String(source, UTF_8));
+			if (result.isSuccess()) {
+				byte[] js = result.getJs().getBytes(UTF_8);
+				byte[] map = (result.getSourceMap() != null) ? result.getSourceMap().getBytes(UTF_8) : new byte[0];
+				out.write(MessageFormat.format("js {0,number,#} {1,number,#}\n", js.length, map.length).getBytes(UTF_8));
+				out.write(js);
+				out.write(map);
+			} else {
+				StringBuilder message = new StringBuilder();
+				for (CompileError error : result.getErrors()) {
+					message.append(error.toString()).append('\n');
+				}
+				byte[] bytes = message.toString().getBytes(UTF_8);
+				out.write(MessageFormat.format("error {0,number,#}\n", bytes.length).getBytes(UTF_8));
+				out.write(bytes);
+				status = 1;
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * Reads a line terminated by LF, or returns null at the end of the input.
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		for (;;) {
+			int b = in.read();
+			if (b < 0) {
+				if (line.size() == 0) {
+					return null;
+				}
+				throw new EOFException("unterminated frame header");
+			}
+			if (b == '\n') {
+				return new String(line.toByteArray(), UTF_8);
+			}
+			line.write(b);
+		}
+	}
+
+	private static byte[] readFully(InputStream in, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		int off = 0;
+		while (off < length) {
+			int n = in.read(bytes, off, length - off);
+			if (n < 0) {
+				throw new EOFException(MessageFormat.format("{0} of {1} bytes of the source", off, length));
+			}
+			off += n;
+		}
+		return bytes;
+	}
+
+	private static String base64(byte[] bytes) {
+		StringBuilder s = new StringBuilder((bytes.length + 2) / 3 * 4);
+		for (int i = 0; i < bytes.length; i += 3) {
+			int n = (bytes[i] & 0xff) << 16;
+			if (i + 1 < bytes.length) {
+				n |= (bytes[i + 1] & 0xff) << 8;
+			}
+			if (i + 2 < bytes.length) {
+				n |= bytes[i + 2] & 0xff;
+			}
+			s.append(BASE64_CHARS.charAt((n >> 18) & 0x3f));
+			s.append(BASE64_CHARS.charAt((n >> 12) & 0x3f));
+			s.append((i + 1 < bytes.length) ? BASE64_CHARS.charAt((n >> 6) & 0x3f) : '=');
+			s.append((i + 2 < bytes.length) ? BASE64_CHARS.charAt(n & 0x3f) : '=');
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,226 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.script.ScriptException;
+
+/**
+ * Warm-up of the script engines with a built-in corpus.
+ *
+ * <p>The first compilations on a new engine are much slower than the later ones,
+ * because the lexer, the parser and the code generator of CoffeeScript are interpreted
+ * until the engine and the JIT compiler of the JVM have optimized them.
+ * The corpus covers most of the syntax, and is compiled with and without the source map
+ * so that both code paths of the adapter are optimized. One source has a syntax error for the error path.</p>
+ */
+class WarmUp {
+
+	private static final String[] CORPUS = {
+		// classes, inheritance, bound methods, splats, default arguments
+		"class Shape\n"
+		+ "  @count: 0\n"
+		+ "  constructor: (@name, @sides = 0, options...) ->\n"
+		+ "    Shape.count++\n"
+		+ "    @options = options\n"
+		+ "  area: -> throw new Error \"#{@name}: not implemented\"\n"
+		+ "  describe: => \"#{@name} with #{@sides} sides, area #{@area().toFixed 2}\"\n"
+		+ "\n"
+		+ "class Rect extends Shape\n"
+		+ "  constructor: (@w, @h) -> super 'rect', 4\n"
+		+ "  area: -> @w * @h\n"
+		+ "\n"
+		+ "class Circle extends Shape\n"
+		+ "  constructor: (@r) -> super 'circle'\n"
+		+ "  area: -> Math.PI * @r * @r\n"
+		+ "\n"
+		+ "shapes = [new Rect(2, 3), new Circle(1.5), new Rect(4, 4)]\n"
+		+ "total = shapes.reduce ((sum, s) -> sum + s.area()), 0\n"
+		+ "console?.log shape.describe() for shape in shapes when shape.area() > 5\n",
+
+		// comprehensions, ranges, destructuring, switch, existential operators, regexes
+		"{floor, max} = Math\n"
+		+ "squares = (x * x for x in [1..20] by 2)\n"
+		+ "evens = (n for n in [0...100] when n % 2 is 0)\n"
+		+ "table = {}\n"
+		+ "table[key] = value for own key, value of {a: 1, b: 2, c: 3}\n"
+		+ "[first, rest..., last] = squares\n"
+		+ "grade = (score) ->\n"
+		+ "  switch\n"
+		+ "    when score >= 90 then 'A'\n"
+		+ "    when score >= 80 then 'B'\n"
+		+ "    else 'C'\n"
+		+ "words = 'the quick brown fox'.split /\\s+/\n"
+		+ "longest = max (w.length for w in words)...\n"
+		+ "config = options?.config ? {}\n"
+		+ "config.retries ?= 3\n"
+		+ "while config.retries-- > 0\n"
+		+ "  break unless floor(Math.random() * 10) > 5\n"
+		+ "email = ///\n"
+		+ "  ^ [\\w.+-]+ @ [\\w-]+ (\\. [\\w-]+)+ $\n"
+		+ "///i\n",
+
+		// strings, heredocs, closures, try/catch, chained calls, objects
+		"html = \"\"\"\n"
+		+ "  <ul>\n"
+		+ "    #{(\"<li>#{item}</li>\" for item in ['a', 'b']).join ''}\n"
+		+ "  </ul>\n"
+		+ "\"\"\"\n"
+		+ "###\n"
+		+ "Block comment\n"
+		+ "###\n"
+		+ "memoize = (fn) ->\n"
+		+ "  cache = {}\n"
+		+ "  (arg) -> cache[arg] ?= fn arg\n"
+		+ "fib = memoize (n) -> if n < 2 then n else fib(n - 1) + fib(n - 2)\n"
+		+ "parse = (text) ->\n"
+		+ "  try\n"
+		+ "    JSON.parse text\n"
+		+ "  catch error\n"
+		+ "    null\n"
+		+ "  finally\n"
+		+ "    done = yes\n"
+		+ "server =\n"
+		+ "  host: 'localhost', port: 8080\n"
+		+ "  routes:\n"
+		+ "    '/': (req, res) -> res.end html\n"
+		+ "    '/fib': (req, res) -> res.end String fib +req.query.n\n"
+		+ "do -> server.routes['/'] {}, end: (body) -> body.length\n",
+
+		// syntax error
+		"square = (x) -> x * x\n"
+		+ "cube = (x) -> x * square(x\n",
+	};
+
+	private static final String LITERATE =
+		"Literate CoffeeScript\n"
+		+ "=====================\n"
+		+ "\n"
+		+ "Prose is ignored, and the indented code is compiled.\n"
+		+ "\n"
+		+ "    queue = []\n"
+		+ "    enqueue = (task) -> queue.push task\n"
+		+ "\n"
+		+ "Tasks run in order:\n"
+		+ "\n"
+		+ "    runAll = -> task() while task = queue.shift()\n";
+
+	private WarmUp() {
+	}
+
+	/**
+	 * Compiles the corpus with every context of the compiler.
+	 *
+	 * @param compiler compiler to warm up
+	 * @param rounds number of times to compile the corpus per context
+	 * @return number of the compilations
+	 */
+	public static int run(final CoffeeCompiler compiler, final int rounds) throws ScriptException, IOException {
+		compiler.init();
+		int threads = compiler.getPoolSize();
+		if (threads == 1) {
+			return compileCorpus(compiler, rounds);
+		}
+
+		// each thread takes any idle context, so the compilations are spread over the contexts
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "jruncoffeescript-warm-up");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < threads; ++i) {
+				futures.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						return compileCorpus(compiler, rounds);
+					}
+				}));
+			}
+			int count = 0;
+			for (Future<Integer> future : futures) {
+				count += future.get();
+			}
+			return count;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while warming up the script engines");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ScriptException) {
+				throw (ScriptException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static int compileCorpus(CoffeeCompiler compiler, int rounds) throws ScriptException, IOException {
+		int count = 0;
+		for (int round = 0; round < rounds; ++round) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("interrupted while warming up the script engines");
+			}
+			boolean sourceMap = (round % 2 == 1);
+			for (int i = 0; i < CORPUS.length; ++i) {
+				compiler.compile(CORPUS[i], newOptions("warm-up-" + i + ".coffee", sourceMap, false));
+				++count;
+			}
+			compiler.compile(LITERATE, newOptions("warm-up.litcoffee", sourceMap, true));
+			++count;
+		}
+		return count;
+	}
+
+	private static CompileOptions newOptions(String filename, boolean sourceMap, boolean literate) {
+		CompileOptions options = new CompileOptions();
+		options.setFilename(filename);
+		options.setSourceMap(sourceMap);
+		options.setLiterate(literate);
+		options.setBare(!sourceMap);
+		if (sourceMap) {
+			options.setGeneratedFile(filename.replaceFirst("\\.[a-z]+$", ".js"));
+			List<String> sourceFiles = new ArrayList<String>();
+			sourceFiles.add(filename);
+			options.setSourceFiles(sourceFiles);
+		}
+		return options;
+	}
+}
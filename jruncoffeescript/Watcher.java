@@ -0,0 +1,375 @@
+// Copyright (c) 2015 Iwasa Kazmi
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package jruncoffeescript;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the source files and directories.
+ *
+ * <p>Directories specified in the arguments are watched recursively,
+ * and new subdirectories are registered as soon as they are created.
+ * Changes are collected until no event comes within the debounce window,
+ * then passed to the listener as a batch on a separate thread.</p>
+ */
+class Watcher {
+
+	/**
+	 * Receiver of the batched changes.
+	 */
+	interface Listener {
+
+		/**
+		 * Called when the source files were created or modified.
+		 */
+		void sourcesChanged(List<String> paths) throws Exception;
+
+		/**
+		 * Called when the source files were deleted.
+		 */
+		void sourcesDeleted(List<String> paths) throws Exception;
+	}
+
+	private static final WatchEvent.Kind<?>[] EVENT_KINDS = {
+			StandardWatchEventKinds.ENTRY_CREATE,
+			StandardWatchEventKinds.ENTRY_MODIFY,
+			StandardWatchEventKinds.ENTRY_DELETE
+	};
+
+	// a batch is flushed even if events keep coming, so that the file being edited isn't held back by a mass change
+	private static final int MAX_DEBOUNCE_WINDOWS = 2;
+
+	private final SourceFilter filter;
+	private final long debounceNanos;
+	private final Listener listener;
+	private final PrintStream log;
+	private final PrintStream err;
+
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> watchedDirs = new HashMap<WatchKey, Path>();
+	private final Set<Path> recursiveDirs = new HashSet<Path>();	// directories in the watched trees
+	private final List<Path> treeRoots = new ArrayList<Path>();	// directories specified in the arguments
+	private final Set<Path> explicitFiles = new HashSet<Path>();	// files specified in the arguments
+	private final NavigableSet<Path> knownFiles = new TreeSet<Path>();	// source files seen so far
+
+	private Set<Path> changedFiles = new TreeSet<Path>();
+	private Set<Path> deletedFiles = new TreeSet<Path>();
+
+	/**
+	 * @param args source files and directories
+	 * @param filter filter of the files and the directories in the watched trees
+	 * @param debounceMillis debounce window
+	 * @param listener receiver of the changes
+	 * @param log stream for the verbose messages, or null
+	 * @param err stream for the failures of the listener
+	 */
+	public Watcher(List<String> args, SourceFilter filter, long debounceMillis, Listener listener, PrintStream log, PrintStream err) throws IOException {
+		this.filter = filter;
+		this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+		this.listener = listener;
+		this.log = log;
+		this.err = err;
+		this.watchService = FileSystems.getDefault().newWatchService();
+
+		for (String arg : args) {
+			Path path = Paths.get(arg).toAbsolutePath().normalize();
+			if (Files.isDirectory(path)) {
+				treeRoots.add(path);
+				registerTree(path, null);
+			} else {
+				explicitFiles.add(path);
+				knownFiles.add(path);
+				Path dir = path.getParent();
+				if (!watchedDirs.containsValue(dir)) {
+					register(dir);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Watches the files until the thread is interrupted.
+	 */
+	public void run() throws IOException {
+		ExecutorService batchExecutor = Executors.newSingleThreadExecutor();
+		try {
+			long firstEventTime = 0;
+			long deadline = 0;
+			for (;;) {
+				WatchKey key;
+				if (changedFiles.isEmpty() && deletedFiles.isEmpty()) {
+					key = watchService.take();
+					firstEventTime = System.nanoTime();
+				} else {
+					long wait = deadline - System.nanoTime();
+					key = (wait > 0) ? watchService.poll(wait, TimeUnit.NANOSECONDS) : null;
+					if (key == null) {
+						flush(batchExecutor);
+						continue;
+					}
+				}
+
+				processEvents(key);
+
+				long now = System.nanoTime();
+				deadline = Math.min(now + debounceNanos, firstEventTime + debounceNanos * MAX_DEBOUNCE_WINDOWS);
+			}
+		} catch (InterruptedException e) {
+			// ignore
+		} finally {
+			batchExecutor.shutdown();
+			watchService.close();
+		}
+	}
+
+	private void processEvents(WatchKey key) throws IOException {
+		Path dir = watchedDirs.get(key);
+		if (dir == null) {
+			key.cancel();
+			return;
+		}
+		boolean recursive = recursiveDirs.contains(dir);
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				verbose("too many events; rescan all files");
+				rescan();
+				continue;
+			}
+
+			Path path = dir.resolve((Path) event.context());
+			if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				if (knownFiles.contains(path)) {
+					if (recursive || explicitFiles.contains(path)) {
+						fileDeleted(path);
+					}
+				} else if (recursiveDirs.contains(path) || watchedDirs.containsValue(path)) {
+					// siblings such as "models-x" sort between "models" and "models/x",
+					// so the files in the directory are not a range of the known files
+					List<Path> deleted = new ArrayList<Path>();
+					for (Path file : knownFiles) {
+						if (file.startsWith(path) && (recursive || explicitFiles.contains(file))) {
+							deleted.add(file);
+						}
+					}
+					for (Path file : deleted) {
+						fileDeleted(file);
+					}
+					unregisterTree(path);
+				}
+			} else if (recursive && Files.isDirectory(path)) {
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+					// files may have been created before the directory is registered
+					registerTree(path, changedFiles);
+				}
+			} else if (isTarget(path, recursive)) {
+				fileChanged(path);
+			}
+		}
+
+		if (!key.reset()) {
+			// the directory is no longer accessible
+			watchedDirs.remove(key);
+			recursiveDirs.remove(dir);
+		}
+	}
+
+	/**
+	 * Stops watching the deleted directory and its subdirectories.
+	 */
+	private void unregisterTree(Path path) {
+		for (Iterator<Map.Entry<WatchKey, Path>> it = watchedDirs.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<WatchKey, Path> entry = it.next();
+			if (entry.getValue().startsWith(path)) {
+				entry.getKey().cancel();
+				it.remove();
+			}
+		}
+		for (Iterator<Path> it = recursiveDirs.iterator(); it.hasNext();) {
+			if (it.next().startsWith(path)) {
+				it.remove();
+			}
+		}
+	}
+
+	private boolean isTarget(Path path, boolean recursive) {
+		if (explicitFiles.contains(path)) {
+			return true;
+		}
+		return recursive && filter.acceptFile(relativize(path)) && Files.isRegularFile(path);
+	}
+
+	/**
+	 * Returns the path relative to the watched tree which contains it.
+	 */
+	private Path relativize(Path path) {
+		Path root = null;
+		for (Path treeRoot : treeRoots) {
+			if (path.startsWith(treeRoot) && (root == null || treeRoot.startsWith(root))) {
+				root = treeRoot;
+			}
+		}
+		return (root != null) ? root.relativize(path) : path.getFileName();
+	}
+
+	private void fileChanged(Path file) {
+		knownFiles.add(file);
+		deletedFiles.remove(file);
+		changedFiles.add(file);
+	}
+
+	private void fileDeleted(Path file) {
+		if (!explicitFiles.contains(file)) {
+			knownFiles.remove(file);
+		}
+		changedFiles.remove(file);
+		deletedFiles.add(file);
+	}
+
+	private void rescan() throws IOException {
+		for (Path dir : new ArrayList<Path>(recursiveDirs)) {
+			if (Files.isDirectory(dir)) {
+				registerTree(dir, changedFiles);
+			}
+		}
+		for (Path file : explicitFiles) {
+			if (Files.isRegularFile(file)) {
+				changedFiles.add(file);
+			}
+		}
+		List<Path> deleted = new ArrayList<Path>();
+		for (Path file : knownFiles) {
+			if (!Files.exists(file)) {
+				deleted.add(file);
+			}
+		}
+		for (Path file : deleted) {
+			fileDeleted(file);
+		}
+	}
+
+	/**
+	 * Registers the directory and its subdirectories.
+	 *
+	 * @param foundFiles collection to add the source files found in the directories, or null
+	 */
+	private void registerTree(Path root, final Set<Path> foundFiles) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (!treeRoots.contains(dir) && !filter.acceptDirectory(relativize(dir))) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				if (!recursiveDirs.contains(dir)) {
+					register(dir);
+					recursiveDirs.add(dir);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && filter.acceptFile(relativize(file))) {
+					knownFiles.add(file);
+					if (foundFiles != null) {
+						foundFiles.add(file);
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				// the file may have been deleted
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void register(Path dir) throws IOException {
+		verbose("watch: {0}", dir);
+		WatchKey key = dir.register(watchService, EVENT_KINDS);
+		watchedDirs.put(key, dir);
+	}
+
+	private void flush(ExecutorService batchExecutor) {
+		final List<String> changed = toStrings(changedFiles);
+		final List<String> deleted = toStrings(deletedFiles);
+		changedFiles = new TreeSet<Path>();
+		deletedFiles = new TreeSet<Path>();
+
+		batchExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (!deleted.isEmpty()) {
+						listener.sourcesDeleted(deleted);
+					}
+					if (!changed.isEmpty()) {
+						listener.sourcesChanged(changed);
+					}
+				} catch (Exception e) {
+					e.printStackTrace(err);
+				}
+			}
+		});
+	}
+
+	private List<String> toStrings(Set<Path> paths) {
+		List<String> list = new ArrayList<String>(paths.size());
+		for (Path path : paths) {
+			list.add(path.toString());
+		}
+		return list;
+	}
+
+	private void verbose(String format, Object... params) {
+		if (log != null) {
+			log.println(MessageFormat.format(format, params));
+		}
+	}
+}